@@ -16,13 +16,23 @@
 package com.github.exabrial.redexsm;
 
 import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpSession;
 
 import org.apache.catalina.session.StandardSession;
 
+import com.github.exabrial.redexsm.codec.EncodedAttribute;
+import com.github.exabrial.redexsm.codec.SessionCodec;
+import com.github.exabrial.redexsm.model.DeferredAttribute;
 import com.github.exabrial.redexsm.model.SessionChangeset;
+import com.github.exabrial.redexsm.model.SessionMetadata;
 
 public class ImprovedRedisSession extends StandardSession {
 	private static final long serialVersionUID = 1L;
@@ -35,93 +45,301 @@ public class ImprovedRedisSession extends StandardSession {
 	public static final String REDEX_MAX_INACTIVE_INTERVAL_ATTR = "redex:session:maxInactiveInterval";
 	public static final String REDEX_PRINCIPAL_ATTR = "redex:session:principal";
 	public static final String REDEX_THIS_ACCESSED_TIME_ATTR = "redex:session:thisAccessedTime";
+	public static final String REDEX_METADATA_ATTR = "redex:session:metadata";
+	/**
+	 * Metadata fields written by older versions, before the metadata was packed into {@link #REDEX_METADATA_ATTR}.
+	 */
+	protected static final List<String> LEGACY_METADATA_ATTRS = List.of(REDEX_AUTHTYPE_ATTR, REDEX_CREATION_TIME_ATTR, REDEX_IS_NEW_ATTR,
+			REDEX_IS_VALID_ATTR, REDEX_LAST_ACCESSED_TIME_ATTR, REDEX_MAX_INACTIVE_INTERVAL_ATTR, REDEX_THIS_ACCESSED_TIME_ATTR);
 
 	protected Map<String, Object> attributeMap;
+	protected transient volatile boolean accessed;
+	protected final Map<String, DeferredAttribute> deferredAttributes = new ConcurrentHashMap<>();
+	protected transient volatile CachedPrincipal cachedPrincipal;
+	protected final Set<String> changedAttributes = ConcurrentHashMap.newKeySet();
+	protected transient volatile boolean stored;
+	protected volatile long version;
 
 	protected ImprovedRedisSession(final ImprovedRedisSessionManager manager) {
 		super(manager);
 		attributeMap = this.attributes;
 	}
 
-	protected Map<String, Object> getAttributeMap() {
-		return attributeMap;
+	/**
+	 * Only the application asks for the session facade. Lookups the container makes on its own, like an authenticator restoring a cached
+	 * principal before every request, call {@link #access()} but don't count as the request touching the session.
+	 */
+	@Override
+	public HttpSession getSession() {
+		markAccessed();
+		return super.getSession();
 	}
 
-	protected void load(final Map<String, Object> rmap) {
-		attributeMap.clear();
-
-		authType = (String) rmap.get(REDEX_AUTHTYPE_ATTR);
+	@Override
+	public Object getAttribute(final String name) {
+		if (name != null && !deferredAttributes.isEmpty() && deferredAttributes.containsKey(name)) {
+			loadDeferredAttribute(name);
+		}
+		final Object value = super.getAttribute(name);
+		// the caller may modify a mutable value in place, which must be written back when merging
+		if (value != null && !SessionCodec.isBasic(value)) {
+			changedAttributes.add(name);
+		}
+		return value;
+	}
 
-		final Object rMapCreationTime = rmap.get(REDEX_CREATION_TIME_ATTR);
-		if (rMapCreationTime != null) {
-			creationTime = (long) rMapCreationTime;
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		final Enumeration<String> attributeNames;
+		if (deferredAttributes.isEmpty()) {
+			attributeNames = super.getAttributeNames();
 		} else {
-			creationTime = 0L;
+			final Set<String> names = new HashSet<>(Collections.list(super.getAttributeNames()));
+			names.addAll(deferredAttributes.keySet());
+			attributeNames = Collections.enumeration(names);
 		}
+		return attributeNames;
+	}
 
-		final Object rMapIsNew = rmap.get(REDEX_IS_NEW_ATTR);
-		if (rMapIsNew != null) {
-			isNew = (boolean) rMapIsNew;
+	@Override
+	protected String[] keys() {
+		final String[] keys;
+		if (deferredAttributes.isEmpty()) {
+			keys = super.keys();
 		} else {
-			isNew = false;
+			final Set<String> names = new HashSet<>(attributeMap.keySet());
+			names.addAll(deferredAttributes.keySet());
+			keys = names.toArray(new String[0]);
 		}
+		return keys;
+	}
 
-		final Object rMapIsValid = rmap.get(REDEX_IS_VALID_ATTR);
-		if (rMapIsValid != null) {
-			isValid = (boolean) rMapIsValid;
-		} else {
-			isValid = false;
+	@Override
+	public void setAttribute(final String name, final Object value, final boolean notify) {
+		if (name != null) {
+			deferredAttributes.remove(name);
+			changedAttributes.add(name);
 		}
+		super.setAttribute(name, value, notify);
+		accessed = true;
+	}
 
-		final Object rMapLastAccessedTime = rmap.get(REDEX_LAST_ACCESSED_TIME_ATTR);
-		if (rMapLastAccessedTime != null) {
-			lastAccessedTime = (long) rMapLastAccessedTime;
-		} else {
-			lastAccessedTime = creationTime;
+	@Override
+	public void removeAttribute(final String name, final boolean notify) {
+		if (name != null) {
+			deferredAttributes.remove(name);
+			changedAttributes.add(name);
 		}
+		super.removeAttribute(name, notify);
+		accessed = true;
+	}
 
-		final Object rMapMaxInactiveInterval = rmap.get(REDEX_MAX_INACTIVE_INTERVAL_ATTR);
-		if (rMapMaxInactiveInterval != null) {
-			maxInactiveInterval = (int) rMapMaxInactiveInterval;
-		} else {
-			maxInactiveInterval = -1;
+	/**
+	 * Fetch an attribute that was not loaded with the rest of the session. Binding listeners of deferred attributes that are replaced or
+	 * removed without ever being loaded are not notified.
+	 */
+	protected void loadDeferredAttribute(final String name) {
+		synchronized (deferredAttributes) {
+			final DeferredAttribute deferredAttribute = deferredAttributes.get(name);
+			if (deferredAttribute != null && manager instanceof ImprovedRedisSessionManager) {
+				final Map<String, Object> loadedAttributes = ((ImprovedRedisSessionManager) manager).loadDeferredAttributes(getIdInternal(),
+						Map.of(name, deferredAttribute));
+				if (loadedAttributes != null) {
+					deferredAttributes.remove(name);
+					final Object value = loadedAttributes.get(name);
+					if (value != null) {
+						attributeMap.put(name, value);
+					}
+				}
+			}
 		}
+	}
 
-		principal = (Principal) rmap.get(REDEX_PRINCIPAL_ATTR);
+	/**
+	 * @return the version of the session in the backend when this node last loaded or stored it, or 0 if it never did
+	 */
+	public long getVersion() {
+		return version;
+	}
 
-		final Object rMapThisAccessedTime = rmap.get(REDEX_THIS_ACCESSED_TIME_ATTR);
-		if (rMapThisAccessedTime != null) {
-			thisAccessedTime = (long) rMapThisAccessedTime;
-		} else {
-			thisAccessedTime = creationTime;
+	protected void setVersion(final long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return true if the session was accessed or modified since it was loaded or last stored
+	 */
+	protected boolean isAccessed() {
+		return accessed;
+	}
+
+	protected void markAccessed() {
+		accessed = true;
+		if (manager instanceof ImprovedRedisSessionManager) {
+			((ImprovedRedisSessionManager) manager).sessionAccessed(this);
 		}
+	}
+
+	protected void clearAccessed() {
+		accessed = false;
+	}
+
+	@Override
+	public void setMaxInactiveInterval(final int interval) {
+		super.setMaxInactiveInterval(interval);
+		if (manager instanceof ImprovedRedisSessionManager) {
+			((ImprovedRedisSessionManager) manager).scheduleExpiry(this);
+		}
+	}
+
+	protected void setIdInternal(final String id) {
+		this.id = id;
+	}
+
+	protected Map<String, Object> getAttributeMap() {
+		return attributeMap;
+	}
+
+	protected void load(final Map<String, Object> rmap) {
+		attributeMap.clear();
+		deferredAttributes.clear();
+
+		final SessionMetadata metadata = toMetadata(rmap);
+		authType = metadata.authType;
+		creationTime = metadata.creationTime;
+		isNew = metadata.isNew;
+		isValid = metadata.isValid;
+		lastAccessedTime = metadata.lastAccessedTime;
+		maxInactiveInterval = metadata.maxInactiveInterval;
+		thisAccessedTime = metadata.thisAccessedTime;
+
+		principal = (Principal) rmap.get(REDEX_PRINCIPAL_ATTR);
+		cachedPrincipal = null;
 
 		final List<String> sessionAttributeKeys = filterOutRedexAttributes(rmap.keySet());
 		for (final String key : sessionAttributeKeys) {
-			setAttribute(key, rmap.get(key), true);
+			final Object value = rmap.get(key);
+			if (value instanceof DeferredAttribute) {
+				deferredAttributes.put(key, (DeferredAttribute) value);
+			} else {
+				setAttribute(key, value, true);
+			}
 		}
+		final Object rMapVersion = rmap.get(SessionChangeset.REDEX_VERSION);
+		version = rMapVersion == null ? 0L : (long) rMapVersion;
+		changedAttributes.clear();
+		stored = true;
+		accessed = false;
 	}
 
+	/**
+	 * Adds the session to the changeset. A merging changeset only receives the attributes changed since the session was last stored,
+	 * unless the session was never stored, in which case the changeset is turned into a full one.
+	 */
 	protected void store(final SessionChangeset sessionChangeset) {
-		final List<String> sessionAttributeKeys = filterOutRedexAttributes(attributeMap.keySet());
-		for (final String key : sessionAttributeKeys) {
-			final Object value = attributeMap.get(key);
-			if (value != null) {
-				sessionChangeset.put(key, value);
+		if (!stored) {
+			sessionChangeset.setMerge(false);
+		}
+		if (sessionChangeset.isMerge()) {
+			for (final String key : filterOutRedexAttributes(changedAttributes)) {
+				changedAttributes.remove(key);
+				final Object value = attributeMap.get(key);
+				if (value != null) {
+					sessionChangeset.put(key, value);
+				} else if (!deferredAttributes.containsKey(key)) {
+					sessionChangeset.remove(key);
+				}
+			}
+		} else {
+			changedAttributes.clear();
+			final List<String> sessionAttributeKeys = filterOutRedexAttributes(attributeMap.keySet());
+			for (final String key : sessionAttributeKeys) {
+				final Object value = attributeMap.get(key);
+				if (value != null) {
+					sessionChangeset.put(key, value);
+				}
+			}
+			for (final DeferredAttribute deferredAttribute : deferredAttributes.values()) {
+				sessionChangeset.retain(deferredAttribute);
 			}
 		}
-		if (authType != null) {
-			sessionChangeset.put(REDEX_AUTHTYPE_ATTR, authType);
+		if (manager instanceof ImprovedRedisSessionManager && ((ImprovedRedisSessionManager) manager).isPackedMetadata()) {
+			if (sessionChangeset.isMerge() && stored) {
+				for (final String legacyKey : LEGACY_METADATA_ATTRS) {
+					sessionChangeset.remove(legacyKey);
+				}
+			}
+			sessionChangeset.put(REDEX_METADATA_ATTR,
+					new SessionMetadata(authType, creationTime, isNew, isValid, lastAccessedTime, maxInactiveInterval, thisAccessedTime));
+		} else {
+			if (sessionChangeset.isMerge() && stored) {
+				// a packed copy written while the layout was enabled would be read instead of these fields
+				sessionChangeset.remove(REDEX_METADATA_ATTR);
+				if (authType == null) {
+					sessionChangeset.remove(REDEX_AUTHTYPE_ATTR);
+				}
+			}
+			if (authType != null) {
+				sessionChangeset.put(REDEX_AUTHTYPE_ATTR, authType);
+			}
+			sessionChangeset.put(REDEX_CREATION_TIME_ATTR, creationTime);
+			sessionChangeset.put(REDEX_IS_NEW_ATTR, isNew);
+			sessionChangeset.put(REDEX_IS_VALID_ATTR, isValid);
+			sessionChangeset.put(REDEX_LAST_ACCESSED_TIME_ATTR, lastAccessedTime);
+			sessionChangeset.put(REDEX_MAX_INACTIVE_INTERVAL_ATTR, maxInactiveInterval);
+			sessionChangeset.put(REDEX_THIS_ACCESSED_TIME_ATTR, thisAccessedTime);
 		}
-		sessionChangeset.put(REDEX_CREATION_TIME_ATTR, creationTime);
-		sessionChangeset.put(REDEX_IS_NEW_ATTR, isNew);
-		sessionChangeset.put(REDEX_IS_VALID_ATTR, isValid);
-		sessionChangeset.put(REDEX_LAST_ACCESSED_TIME_ATTR, lastAccessedTime);
-		sessionChangeset.put(REDEX_MAX_INACTIVE_INTERVAL_ATTR, maxInactiveInterval);
+		stored = true;
 		if (principal != null) {
-			sessionChangeset.put(REDEX_PRINCIPAL_ATTR, principal);
+			final EncodedAttribute encodedPrincipal = encodePrincipal(principal);
+			if (encodedPrincipal != null) {
+				sessionChangeset.putEncoded(encodedPrincipal);
+			} else {
+				sessionChangeset.put(REDEX_PRINCIPAL_ATTR, principal);
+			}
+		}
+	}
+
+	/**
+	 * Reads the session metadata from a loaded session, whether it was stored packed or, by older versions, one field per value.
+	 */
+	protected static SessionMetadata toMetadata(final Map<String, Object> rmap) {
+		final SessionMetadata metadata;
+		final Object rMapMetadata = rmap.get(REDEX_METADATA_ATTR);
+		if (rMapMetadata != null) {
+			metadata = (SessionMetadata) rMapMetadata;
+		} else {
+			final Object rMapCreationTime = rmap.get(REDEX_CREATION_TIME_ATTR);
+			final long creationTime = rMapCreationTime == null ? 0L : (long) rMapCreationTime;
+			final Object rMapIsNew = rmap.get(REDEX_IS_NEW_ATTR);
+			final Object rMapIsValid = rmap.get(REDEX_IS_VALID_ATTR);
+			final Object rMapLastAccessedTime = rmap.get(REDEX_LAST_ACCESSED_TIME_ATTR);
+			final Object rMapMaxInactiveInterval = rmap.get(REDEX_MAX_INACTIVE_INTERVAL_ATTR);
+			final Object rMapThisAccessedTime = rmap.get(REDEX_THIS_ACCESSED_TIME_ATTR);
+			metadata = new SessionMetadata((String) rmap.get(REDEX_AUTHTYPE_ATTR), creationTime,
+					rMapIsNew != null && (boolean) rMapIsNew, rMapIsValid != null && (boolean) rMapIsValid,
+					rMapLastAccessedTime == null ? creationTime : (long) rMapLastAccessedTime,
+					rMapMaxInactiveInterval == null ? -1 : (int) rMapMaxInactiveInterval,
+					rMapThisAccessedTime == null ? creationTime : (long) rMapThisAccessedTime);
 		}
-		sessionChangeset.put(REDEX_THIS_ACCESSED_TIME_ATTR, thisAccessedTime);
+		return metadata;
+	}
+
+	/**
+	 * The principal rarely changes after login, but would otherwise be serialized and encrypted again on every request. The encoded
+	 * form is kept for as long as the session holds the same principal instance.
+	 */
+	protected EncodedAttribute encodePrincipal(final Principal currentPrincipal) {
+		CachedPrincipal cached = cachedPrincipal;
+		if (cached == null || cached.principal != currentPrincipal) {
+			EncodedAttribute encodedPrincipal = null;
+			if (manager instanceof ImprovedRedisSessionManager) {
+				encodedPrincipal = ((ImprovedRedisSessionManager) manager).encodeAttribute(REDEX_PRINCIPAL_ATTR, currentPrincipal);
+			}
+			cached = new CachedPrincipal(currentPrincipal, encodedPrincipal);
+			cachedPrincipal = cached;
+		}
+		return cached.encodedPrincipal;
 	}
 
 	protected static final List<String> filterOutRedexAttributes(final Set<String> keySet) {
@@ -129,4 +347,14 @@ public class ImprovedRedisSession extends StandardSession {
 				.toList();
 		return sessionAttributeKeys;
 	}
+
+	protected static class CachedPrincipal {
+		protected final Principal principal;
+		protected final EncodedAttribute encodedPrincipal;
+
+		protected CachedPrincipal(final Principal principal, final EncodedAttribute encodedPrincipal) {
+			this.principal = principal;
+			this.encodedPrincipal = encodedPrincipal;
+		}
+	}
 }
@@ -20,9 +20,23 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.Cookie;
@@ -38,52 +52,450 @@ import org.apache.catalina.session.ManagerBase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.exabrial.redexsm.codec.EncodedAttribute;
+import com.github.exabrial.redexsm.codec.SessionCodec;
+import com.github.exabrial.redexsm.codec.SharedAttributeCache;
+import com.github.exabrial.redexsm.encryption.EncryptionSupport;
+import com.github.exabrial.redexsm.file.MappedFileRedisService;
+import com.github.exabrial.redexsm.file.SessionSnapshot;
+import com.github.exabrial.redexsm.inboundevents.SessionEventDispatcher;
+import com.github.exabrial.redexsm.inboundevents.SessionEventStream;
+import com.github.exabrial.redexsm.jedis.AdaptivePoolSizer;
 import com.github.exabrial.redexsm.jedis.JedisRedisService;
+import com.github.exabrial.redexsm.model.DeferredAttribute;
 import com.github.exabrial.redexsm.model.SessionChangeset;
+import com.github.exabrial.redexsm.model.SessionLease;
+import com.github.exabrial.redexsm.model.SessionMetadata;
 
 public class ImprovedRedisSessionManager extends ManagerBase implements SessionRemover {
-	protected static final String JSESSIONID = "JSESSIONID";
 	protected static final Logger log = LoggerFactory.getLogger(ImprovedRedisSessionManager.class);
+	protected static final long EXPIRY_TICK_MILLIS = 1000;
+	protected static final int EXPIRY_WHEEL_SLOTS = 3600;
+	public static final String BACKEND_REDIS = "redis";
+	public static final String BACKEND_FILE = "file";
 
 	private RedisService redisService;
+	private RedisCircuitBreaker circuitBreaker;
+	private SessionEventDispatcher sessionEventDispatcher;
+	private SessionExpiryWheel expiryWheel;
+	private AdaptivePoolSizer adaptivePoolSizer;
+	private SharedAttributeCache sharedAttributeCache;
+	private boolean mergeEnabled;
+	private SessionCodec sessionCodec;
+	private final LongAdder localHitCount = new LongAdder();
+	private final LongAdder redisHitCount = new LongAdder();
+	private final LongAdder sessionMissCount = new LongAdder();
+	private final LatencyHistogram publishLatency = new LatencyHistogram();
+	private final LatencyHistogram loadLatency = new LatencyHistogram();
 	private Valve valve;
+	private final Set<String> dirtySessionIds = ConcurrentHashMap.newKeySet();
+	private final Set<String> pendingRemovals = ConcurrentHashMap.newKeySet();
+	private final ThreadLocal<ImprovedRedisSession> requestSession = new ThreadLocal<>();
+	private final ThreadLocal<SessionLock> requestLock = new ThreadLocal<>();
+	private final ConcurrentMap<String, SessionLock> sessionLocks = new ConcurrentHashMap<>();
+	private final LongAdder sessionLockLocalCount = new LongAdder();
+	private final LongAdder sessionLockTimeoutCount = new LongAdder();
+	private volatile SessionBackupTier backupTier;
+	private final Set<String> pendingBackups = ConcurrentHashMap.newKeySet();
+	private ExecutorService backupExecutor;
 
 	protected String keyPassword;
 	protected String keySalt;
+	protected String previousKeyPasswords;
+	protected String previousKeySalt;
+	protected boolean encryptionKeyIds;
+	protected boolean packedMetadata;
 	protected String redisUrl;
 	protected Pattern ignorePattern = Pattern.compile("(?!.*)");
+	protected String ignorePrefixes;
+	protected String ignoreSuffixes;
+	protected String ignoreExtensions;
+	protected String hotAttributes;
+	protected String backend = BACKEND_REDIS;
+	protected String storeFile;
+	protected boolean snapshot;
+	protected String snapshotFile;
+	protected UriIgnoreMatcher uriIgnoreMatcher = new UriIgnoreMatcher(null, null, null);
 	protected String keyPrefix;
 	protected String nodeId;
-	protected String sessionCookieName;
+	protected String nodeName;
+	protected int warmRestartMaxSessions;
 	protected long sessionTimeoutSeconds;
 	protected int poolMinIdle = 1;
 	protected int poolMaxIdle = 1;
 	protected int poolMaxTotal = 15;
 	protected long poolMaxWaitMillis = 5000;
 	protected long poolMinEvictableIdleTimeMillis = 3600000;
+	protected int redisTimeoutMillis = 2000;
+	protected int circuitBreakerFailureThreshold = 5;
+	protected long circuitBreakerOpenMillis = 10000;
+	protected int eventDispatchThreads = 2;
+	protected int eventQueueCapacity = 10000;
+	protected long eventStreamMaxLength;
+	protected int eventStreamBatchSize = 100;
+	protected boolean poolAdaptive;
+	protected int poolAdaptiveMaxTotal = 64;
+	protected long poolAdaptiveTargetWaitMillis = 5;
+	protected int chunkThresholdBytes;
+	protected int chunkSizeBytes = 262144;
+	protected int principalCacheSize;
+	protected boolean mergeWrites;
+	protected boolean sessionLock;
+	protected Pattern sessionLockPattern = Pattern.compile(".*");
+	protected long sessionLockLeaseMillis = 30000;
+	protected long sessionLockWaitMillis = 5000;
+	protected String sharedAttributes;
+	protected int sharedAttributeCacheSize = 1000;
+	protected boolean eventDispatchVirtualThreads;
+	protected boolean expiryNotifications;
+	protected boolean requestTimings;
+	protected String deserializationFilter;
+	protected boolean backupSessions;
+	protected String backupRoute;
+	protected String backupCookieName = "REDEX_BACKUP";
+	protected long backupNodeTimeoutMillis = 60000;
+	protected int backupMaxSessions = 10000;
+	protected int codecParallelism;
+	protected int codecParallelMinAttributes = 32;
+	protected int codecParallelMinBytes = 1048576;
 
-	public void requestStarted(final Request request, final Response response) {
+	/**
+	 * @return false if the request must not proceed because its session's lock couldn't be acquired in time
+	 */
+	public boolean requestStarted(final Request request, final Response response) {
+		requestLock.set(null);
+		if (requestTimings) {
+			RequestTimings.start();
+		}
+		boolean proceed = true;
+		final String sessionId = request.getRequestedSessionId();
+		if (backupTier != null && sessionId != null && !uriIgnoreMatcher.matches(request.getRequestURI())) {
+			addBackupCookie(request, response, sessionId);
+		}
+		if (sessionLock && sessionId != null) {
+			final String requestURI = request.getRequestURI();
+			if (!uriIgnoreMatcher.matches(requestURI) && sessionLockPattern.matcher(requestURI).matches()) {
+				proceed = lockSession(sessionId);
+			}
+		}
+		return proceed;
 	}
 
 	public void requestComplete(final Request request, final Response response) {
+		final SessionLock lock = requestLock.get();
+		requestLock.set(null);
+		try {
+			storeRequestSession(request, lock);
+		} finally {
+			unlockSession(lock);
+			final RequestTimings timings = RequestTimings.finish();
+			if (timings != null) {
+				timings.setAttributes(request);
+			}
+		}
+	}
+
+	protected void storeRequestSession(final Request request, final SessionLock lock) {
+		final ImprovedRedisSession accessedSession = requestSession.get();
+		requestSession.set(null);
 		final String requestURI = request.getRequestURI();
-		if (!ignorePattern.matcher(requestURI).matches()) {
-			final String sessionId = toSessionId(request, response);
-			if (sessionId != null) {
+		if (!uriIgnoreMatcher.matches(requestURI)) {
+			final ImprovedRedisSession session = toSession(request, accessedSession);
+			if (session != null && session.isAccessed() && session.isValid() && !ignorePattern.matcher(requestURI).matches()) {
+				final String sessionId = session.getIdInternal();
+				final long startTime = System.nanoTime();
 				try {
-					final ImprovedRedisSession session = (ImprovedRedisSession) super.findSession(sessionId);
-					if (session != null) {
-						final SessionChangeset sessionChangeset = new SessionChangeset(sessionId, nodeId, sessionTimeoutSeconds,
-								request.getRemoteUser());
-						session.store(sessionChangeset);
-						log.trace("requestComplete() executing batch update: publishing session and eviction notice to topic for sessionId:{}",
-								sessionId);
-						redisService.publishChangeset(sessionChangeset);
+					session.clearAccessed();
+					// a session that couldn't be written is rewritten in full, in case it is missing from the backend
+					final SessionChangeset sessionChangeset = toChangeset(request, session, lock,
+							mergeEnabled && !dirtySessionIds.contains(sessionId));
+					log.trace("requestComplete() executing batch update: publishing session and eviction notice to topic for sessionId:{}",
+							sessionId);
+					if (!publishChangeset(session, sessionChangeset)) {
+						log.debug("requestComplete() sessionId:{} was missing from the backend, writing it in full", sessionId);
+						publishChangeset(session, toChangeset(request, session, lock, false));
 					}
 				} catch (final Exception e) {
 					log.error("requestComplete() caught exception", e);
 					throw new RuntimeException(e);
+				} finally {
+					RequestTimings.recordStore(System.nanoTime() - startTime);
+				}
+			}
+		}
+	}
+
+	protected SessionChangeset toChangeset(final Request request, final ImprovedRedisSession session, final SessionLock lock,
+			final boolean merge) {
+		final String sessionId = session.getIdInternal();
+		final SessionChangeset sessionChangeset = new SessionChangeset(sessionId, nodeId, sessionTimeoutSeconds, request.getRemoteUser());
+		sessionChangeset.setMerge(merge);
+		if (lock != null && lock.sessionId.equals(sessionId)) {
+			sessionChangeset.setLockOwner(lock.owner);
+		}
+		final SessionBackupTier currentTier = backupTier;
+		if (currentTier != null) {
+			sessionChangeset.setBackupRoute(currentTier.toBackupRoute(sessionId));
+		}
+		session.store(sessionChangeset);
+		return sessionChangeset;
+	}
+
+	/**
+	 * Tells the load balancer which node holds the warm backup copy of the session, so it can fail over to that node. The cookie is only
+	 * sent when its value changes. The response is usually committed by the time a new session is stored, so the cookie of a new session
+	 * is sent with the response to its next request.
+	 */
+	protected void addBackupCookie(final Request request, final Response response, final String sessionId) {
+		final String currentBackupRoute = backupTier.toBackupRoute(sessionId);
+		if (currentBackupRoute != null) {
+			String advertisedRoute = null;
+			final Cookie[] cookies = request.getCookies();
+			if (cookies != null) {
+				for (final Cookie cookie : cookies) {
+					if (backupCookieName.equals(cookie.getName())) {
+						advertisedRoute = cookie.getValue();
+					}
+				}
+			}
+			if (!currentBackupRoute.equals(advertisedRoute)) {
+				final Cookie cookie = new Cookie(backupCookieName, currentBackupRoute);
+				final String contextPath = request.getContextPath();
+				cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+				cookie.setHttpOnly(true);
+				cookie.setSecure(request.isSecure());
+				response.addCookie(cookie);
+			}
+		}
+	}
+
+	/**
+	 * Serializes requests for a session, first between the requests of this node, then across nodes with a lease lock in Redis. The wait
+	 * for both is bounded by sessionLockWaitMillis. While Redis is unavailable, requests are only serialized locally.
+	 *
+	 * @return true if the lock was acquired
+	 */
+	protected boolean lockSession(final String sessionId) {
+		final long deadline = System.currentTimeMillis() + sessionLockWaitMillis;
+		final SessionLock lock = sessionLocks.compute(sessionId, (final String key, final SessionLock existing) -> {
+			final SessionLock computed = existing == null ? new SessionLock(key) : existing;
+			computed.users++;
+			return computed;
+		});
+		boolean locked = false;
+		try {
+			locked = lock.tryLock(sessionLockWaitMillis) && acquireLease(lock, deadline);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (locked) {
+			requestLock.set(lock);
+		} else {
+			sessionLockTimeoutCount.increment();
+			log.debug("lockSession() timed out waiting for the lock of sessionId:{}", sessionId);
+			lock.unlock();
+			leaveLock(lock);
+		}
+		return locked;
+	}
+
+	protected boolean acquireLease(final SessionLock lock, final long deadline) throws InterruptedException {
+		boolean leased = false;
+		if (lock.owner != null && lock.leaseExpiresMillis - System.currentTimeMillis() > sessionLockLeaseMillis / 2) {
+			// handed over by the previous request on this node
+			sessionLockLocalCount.increment();
+			leased = true;
+		} else if (!circuitBreaker.allowRequest()) {
+			lock.owner = null;
+			leased = true;
+		} else {
+			boolean available = true;
+			try {
+				final long timeStart = System.currentTimeMillis();
+				if (lock.owner != null && redisService.renewLock(lock.sessionId, lock.owner, sessionLockLeaseMillis)) {
+					lock.leaseExpiresMillis = timeStart + sessionLockLeaseMillis;
+					leased = true;
+				} else {
+					lock.owner = null;
+					long backoffMillis = 5;
+					while (!leased && System.currentTimeMillis() < deadline) {
+						final long timeAttempt = System.currentTimeMillis();
+						final SessionLease sessionLease = redisService.lockAndLoadSessionMap(lock.sessionId, sessionLockLeaseMillis, getContext());
+						if (sessionLease != null) {
+							lock.owner = sessionLease.owner;
+							lock.leaseExpiresMillis = timeAttempt + sessionLockLeaseMillis;
+							if (sessionLease.sessionMap != null) {
+								// another node may have changed the session since it was cached
+								sessions.remove(lock.sessionId);
+								final ImprovedRedisSession session = toSession(sessionLease.sessionMap);
+								session.setId(lock.sessionId, false);
+								session.activate();
+							}
+							leased = true;
+						} else {
+							Thread.sleep(Math.max(1, Math.min(backoffMillis, deadline - System.currentTimeMillis())));
+							backoffMillis = Math.min(backoffMillis * 2, 100);
+						}
+					}
+				}
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("acquireLease() redis unavailable, sessionId:{} is only locked on this node", lock.sessionId, e);
+				lock.owner = null;
+				leased = true;
+			} finally {
+				circuitBreaker.record(available);
+			}
+		}
+		return leased;
+	}
+
+	/**
+	 * Releases the lease in Redis, unless another request on this node is waiting for the session and the lease can be handed over.
+	 */
+	protected void unlockSession(final SessionLock lock) {
+		if (lock != null) {
+			try {
+				if (lock.users <= 1) {
+					releaseLease(lock);
+				}
+			} finally {
+				lock.unlock();
+				leaveLock(lock);
+			}
+		}
+	}
+
+	protected void leaveLock(final SessionLock lock) {
+		final SessionLock remaining = sessionLocks.compute(lock.sessionId, (final String key, final SessionLock existing) -> {
+			existing.users--;
+			return existing.users > 0 ? existing : null;
+		});
+		if (remaining == null) {
+			// the last waiter gave up after the lease was handed over
+			releaseLease(lock);
+		}
+	}
+
+	protected void releaseLease(final SessionLock lock) {
+		final String owner = lock.owner;
+		lock.owner = null;
+		if (owner != null && circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				redisService.releaseLock(lock.sessionId, owner);
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("releaseLease() redis unavailable, the lease of sessionId:{} will expire on its own", lock.sessionId, e);
+			} finally {
+				circuitBreaker.record(available);
+			}
+		}
+	}
+
+	@Override
+	public void backgroundProcess() {
+		super.backgroundProcess();
+		reconcileDirtySessions();
+		heartbeatBackupNode();
+		if (adaptivePoolSizer != null) {
+			adaptivePoolSizer.adjust();
+		}
+	}
+
+	/**
+	 * @return false if a merging changeset found no stored session to merge into, and the session has to be written in full
+	 */
+	protected boolean publishChangeset(final ImprovedRedisSession session, final SessionChangeset sessionChangeset) {
+		final String sessionId = sessionChangeset.getSessionId();
+		boolean merged = true;
+		if (circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				final long startTime = System.nanoTime();
+				merged = redisService.publishChangeset(sessionChangeset);
+				publishLatency.record(System.nanoTime() - startTime);
+				if (sessionChangeset.getVersion() > 0) {
+					session.setVersion(sessionChangeset.getVersion());
+				}
+				dirtySessionIds.remove(sessionId);
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("publishChangeset() redis unavailable, marking sessionId:{} dirty", sessionId, e);
+				dirtySessionIds.add(sessionId);
+			} finally {
+				circuitBreaker.record(available);
+			}
+		} else {
+			log.trace("publishChangeset() circuit open, marking sessionId:{} dirty", sessionId);
+			dirtySessionIds.add(sessionId);
+		}
+		return merged;
+	}
+
+	/**
+	 * Tells the other nodes this one is alive, learns which of them are, and drops backup copies that weren't refreshed for a session
+	 * timeout.
+	 */
+	protected void heartbeatBackupNode() {
+		final SessionBackupTier currentTier = backupTier;
+		if (currentTier != null) {
+			if (circuitBreaker.allowRequest()) {
+				boolean available = true;
+				try {
+					currentTier.setLiveRoutes(
+							((JedisRedisService) redisService).heartbeatNode(currentTier.getRoute(), backupNodeTimeoutMillis));
+				} catch (final RedisUnavailableException e) {
+					available = false;
+					log.warn("heartbeatBackupNode() redis unavailable, keeping live routes:{}", currentTier.getLiveRoutes(), e);
+				} finally {
+					circuitBreaker.record(available);
+				}
+			}
+			if (sessionTimeoutSeconds > 0) {
+				currentTier.expire(System.currentTimeMillis() - sessionTimeoutSeconds * 1000L);
+			}
+		}
+	}
+
+	protected void reconcileDirtySessions() {
+		if ((!dirtySessionIds.isEmpty() || !pendingRemovals.isEmpty()) && circuitBreaker.allowRequest()) {
+			log.debug("reconcileDirtySessions() dirtySessions:{} pendingRemovals:{}", dirtySessionIds.size(), pendingRemovals.size());
+			boolean available = true;
+			try {
+				for (final String sessionId : pendingRemovals) {
+					pendingRemovals.remove(sessionId);
+					try {
+						redisService.remove(sessionId);
+					} catch (final RedisUnavailableException e) {
+						pendingRemovals.add(sessionId);
+						throw e;
+					}
 				}
+				for (final String sessionId : dirtySessionIds) {
+					dirtySessionIds.remove(sessionId);
+					final ImprovedRedisSession session = (ImprovedRedisSession) sessions.get(sessionId);
+					if (session != null && session.isValid()) {
+						final Principal principal = session.getPrincipal();
+						final SessionChangeset sessionChangeset = new SessionChangeset(sessionId, nodeId, sessionTimeoutSeconds,
+								principal == null ? null : principal.getName());
+						session.store(sessionChangeset);
+						try {
+							redisService.publishChangeset(sessionChangeset);
+							if (sessionChangeset.getVersion() > 0) {
+								session.setVersion(sessionChangeset.getVersion());
+							}
+						} catch (final RedisUnavailableException e) {
+							dirtySessionIds.add(sessionId);
+							throw e;
+						}
+					}
+				}
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("reconcileDirtySessions() redis still unavailable", e);
+			} finally {
+				circuitBreaker.record(available);
 			}
 		}
 	}
@@ -92,11 +504,76 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 	public void evictSession(final String sessionId) {
 		log.trace("evictSession() sessionId:{}", sessionId);
 		sessions.remove(sessionId);
+		final SessionBackupTier currentTier = backupTier;
+		if (currentTier != null) {
+			currentTier.remove(sessionId);
+		}
+	}
+
+	@Override
+	public void backupSession(final String sessionId) {
+		log.trace("backupSession() sessionId:{}", sessionId);
+		sessions.remove(sessionId);
+		final SessionBackupTier currentTier = backupTier;
+		if (currentTier != null) {
+			currentTier.remove(sessionId);
+			if (pendingBackups.add(sessionId)) {
+				try {
+					backupExecutor.execute(() -> refreshBackup(currentTier, sessionId));
+				} catch (final RejectedExecutionException e) {
+					pendingBackups.remove(sessionId);
+					log.debug("backupSession() backup queue full, no backup copy of sessionId:{}", sessionId);
+				}
+			}
+		}
+	}
+
+	private void refreshBackup(final SessionBackupTier currentTier, final String sessionId) {
+		pendingBackups.remove(sessionId);
+		if (circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				final Map<String, Object> sessionMap = redisService.loadSessionMap(sessionId, getContext());
+				if (sessionMap != null) {
+					currentTier.put(sessionId, sessionMap);
+				}
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("refreshBackup() redis unavailable, no backup copy of sessionId:{}", sessionId, e);
+			} catch (final RuntimeException e) {
+				log.warn("refreshBackup() could not load backup copy of sessionId:{}", sessionId, e);
+			} finally {
+				circuitBreaker.record(available);
+			}
+		}
+	}
+
+	@Override
+	public void evictAll() {
+		log.debug("evictAll() evicting {} locally cached sessions", sessions.size());
+		sessions.keySet().removeIf((final String sessionId) -> !dirtySessionIds.contains(sessionId));
+		final SessionBackupTier currentTier = backupTier;
+		if (currentTier != null) {
+			currentTier.clear();
+		}
+	}
+
+	@Override
+	public void expireSession(final String sessionId) {
+		log.trace("expireSession() sessionId:{}", sessionId);
+		final Session session = sessions.get(sessionId);
+		if (session != null && session.isValid()) {
+			scheduleExpiry(session);
+		}
 	}
 
 	@Override
 	public void destroySession(final String sessionId) {
 		log.trace("destroySession() sessionId:{}", sessionId);
+		final SessionBackupTier currentTier = backupTier;
+		if (currentTier != null) {
+			currentTier.remove(sessionId);
+		}
 		try {
 			final ImprovedRedisSession session = (ImprovedRedisSession) super.findSession(sessionId);
 			if (session != null) {
@@ -113,11 +590,61 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		return new ImprovedRedisSession(this);
 	}
 
+	@Override
+	public void add(final Session session) {
+		super.add(session);
+		scheduleExpiry(session);
+	}
+
+	@Override
+	public void processExpires() {
+		final long timeNow = System.currentTimeMillis();
+		final List<String> dueSessionIds = expiryWheel.advance(timeNow);
+		int expireHere = 0;
+		for (final String sessionId : dueSessionIds) {
+			final Session session = sessions.get(sessionId);
+			if (session != null) {
+				if (session.isValid()) {
+					scheduleExpiry(session);
+				} else {
+					expireHere++;
+				}
+			}
+		}
+		final long timeEnd = System.currentTimeMillis();
+		log.debug("processExpires() due:{} expired:{} millis:{}", dueSessionIds.size(), expireHere, timeEnd - timeNow);
+		processingTime += timeEnd - timeNow;
+	}
+
+	protected void scheduleExpiry(final Session session) {
+		final int maxInactiveInterval = session.getMaxInactiveInterval();
+		final String sessionId = session.getIdInternal();
+		if (maxInactiveInterval > 0 && sessionId != null && expiryWheel != null) {
+			final long lastAccess = Math.max(session.getThisAccessedTimeInternal(), session.getLastAccessedTimeInternal());
+			expiryWheel.schedule(sessionId, lastAccess + maxInactiveInterval * 1000L);
+		}
+	}
+
 	@Override
 	public void remove(final Session session, final boolean update) {
 		log.trace("remove() session.id:{} update:{}", session.getId(), update);
 		super.remove(session, update);
-		redisService.remove(session.getId());
+		final String sessionId = session.getId();
+		dirtySessionIds.remove(sessionId);
+		if (circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				redisService.remove(sessionId);
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("remove() redis unavailable, deferring removal of sessionId:{}", sessionId, e);
+				pendingRemovals.add(sessionId);
+			} finally {
+				circuitBreaker.record(available);
+			}
+		} else {
+			pendingRemovals.add(sessionId);
+		}
 	}
 
 	@Override
@@ -126,21 +653,28 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		ImprovedRedisSession session;
 		if (id != null) {
 			session = (ImprovedRedisSession) super.findSession(id);
-			if (session == null) {
+			final SessionBackupTier currentTier = backupTier;
+			final Map<String, Object> backupMap = session != null || currentTier == null ? null : currentTier.take(id);
+			if (backupMap != null) {
+				log.trace("findSession() local cache miss, session located in the backup tier");
+				session = toSession(backupMap);
+				session.setId(id, false);
+				session.activate();
+			} else if (session == null) {
 				log.trace("findSession() local cache miss. Trying redis...");
-				final Map<String, Object> sessionMap = redisService.loadSessionMap(id, getContext());
+				final Map<String, Object> sessionMap = loadSessionMap(id);
 				if (sessionMap != null) {
 					log.trace("findSession() session located in redis");
-					session = createEmptySession();
-					session.load(sessionMap);
-					session.setManager(this);
-					session.setValid(true);
-					session.setNew(false);
+					redisHitCount.increment();
+					session = toSession(sessionMap);
 					session.setId(id, false);
 					session.activate();
 				} else {
 					log.trace("findSession() redis miss; giving up");
+					sessionMissCount.increment();
 				}
+			} else {
+				localHitCount.increment();
 			}
 		} else {
 			session = null;
@@ -148,19 +682,163 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		return session;
 	}
 
+	/**
+	 * @return the loaded attributes, or null if Redis is unavailable and the attributes should stay deferred
+	 */
+	protected Map<String, Object> loadDeferredAttributes(final String sessionId, final Map<String, DeferredAttribute> deferredAttributes) {
+		Map<String, Object> attributes;
+		if (circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				final long startTime = System.nanoTime();
+				attributes = redisService.loadDeferredAttributes(sessionId, deferredAttributes, getContext());
+				RequestTimings.recordLoad(System.nanoTime() - startTime);
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("loadDeferredAttributes() redis unavailable, attributes:{} of sessionId:{} stay deferred", deferredAttributes.keySet(),
+						sessionId, e);
+				attributes = null;
+			} finally {
+				circuitBreaker.record(available);
+			}
+		} else {
+			attributes = null;
+		}
+		return attributes;
+	}
+
+	/**
+	 * @return the attribute encoded for storage, or null if the manager isn't started
+	 */
+	protected EncodedAttribute encodeAttribute(final String key, final Object value) {
+		final SessionCodec currentCodec = sessionCodec;
+		try {
+			return currentCodec == null ? null : currentCodec.encode(key, value);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected ImprovedRedisSession toSession(final Map<String, Object> sessionMap) {
+		final ImprovedRedisSession session = createEmptySession();
+		session.load(sessionMap);
+		session.setManager(this);
+		session.setValid(true);
+		session.setNew(false);
+		return session;
+	}
+
+	protected void prefetchRecentSessions() {
+		final Thread prefetchThread = new Thread((Runnable) () -> {
+			final long timeStart = System.currentTimeMillis();
+			try {
+				final Map<String, Map<String, Object>> sessionMaps = redisService.loadRecentSessionMaps(getContext());
+				int prefetched = 0;
+				for (final Map.Entry<String, Map<String, Object>> entry : sessionMaps.entrySet()) {
+					final ImprovedRedisSession session = toSession(entry.getValue());
+					session.setIdInternal(entry.getKey());
+					if (sessions.putIfAbsent(entry.getKey(), session) == null) {
+						scheduleExpiry(session);
+						session.activate();
+						prefetched++;
+					}
+				}
+				log.info("prefetchRecentSessions() prefetched {} sessions for nodeName:{} in {}ms", prefetched, nodeName,
+						System.currentTimeMillis() - timeStart);
+			} catch (final RuntimeException e) {
+				log.warn("prefetchRecentSessions() could not prefetch sessions for nodeName:{}", nodeName, e);
+			}
+		}, "redex-prefetch-" + keyPrefix);
+		prefetchThread.setDaemon(true);
+		prefetchThread.start();
+	}
+
+	protected Map<String, Object> loadSessionMap(final String sessionId) {
+		Map<String, Object> sessionMap;
+		if (circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				final long startTime = System.nanoTime();
+				sessionMap = redisService.loadSessionMap(sessionId, getContext());
+				final long loadNanos = System.nanoTime() - startTime;
+				loadLatency.record(loadNanos);
+				RequestTimings.recordLoad(loadNanos);
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("loadSessionMap() redis unavailable, treating sessionId:{} as a miss", sessionId, e);
+				sessionMap = null;
+			} finally {
+				circuitBreaker.record(available);
+			}
+		} else {
+			log.trace("loadSessionMap() circuit open, treating sessionId:{} as a miss", sessionId);
+			sessionMap = null;
+		}
+		return sessionMap;
+	}
+
+	protected List<String> toPreviousKeyPasswords() {
+		return toList(previousKeyPasswords);
+	}
+
+	protected String toPreviousKeySalt() {
+		return previousKeySalt == null ? keySalt : previousKeySalt;
+	}
+
+	/**
+	 * @return the trimmed, non-empty entries of a comma separated setting, in order; empty if the setting is null
+	 */
+	protected static List<String> toList(final String values) {
+		return values == null ? List.of()
+				: Arrays.stream(values.split(",")).map(String::trim).filter((final String value) -> !value.isEmpty()).toList();
+	}
+
+	/**
+	 * Creates the backend selected by the backend setting. Subclasses may override this to plug in their own {@link RedisService}.
+	 * Backends encode with the manager's {@link SessionCodec}, which is set up before this is called.
+	 */
+	protected RedisService createRedisService() {
+		final RedisService createdService;
+		if (BACKEND_FILE.equals(backend)) {
+			final Path storePath = storeFile == null ? Path.of(System.getProperty("catalina.base", "."), "work", "redex-" + keyPrefix + ".store")
+					: Path.of(storeFile);
+			final MappedFileRedisService fileRedisService = new MappedFileRedisService(storePath, keyPrefix, sessionCodec);
+			fileRedisService.setRecentSessionLimit(warmRestartMaxSessions);
+			createdService = fileRedisService;
+		} else if (BACKEND_REDIS.equals(backend)) {
+			final JedisRedisService jedisRedisService = new JedisRedisService(redisUrl, keyPrefix, nodeId, sessionCodec, poolMinIdle,
+					poolMaxIdle, poolMaxTotal, poolMaxWaitMillis, poolMinEvictableIdleTimeMillis);
+			jedisRedisService.setTimeoutMillis(redisTimeoutMillis);
+			jedisRedisService.setExpiryNotifications(expiryNotifications);
+			jedisRedisService.setEventStream(eventStreamMaxLength, eventStreamBatchSize);
+			if (poolAdaptive) {
+				jedisRedisService.setAdaptivePool(poolAdaptiveMaxTotal, poolAdaptiveTargetWaitMillis);
+			}
+			jedisRedisService.setChunking(chunkThresholdBytes, chunkSizeBytes);
+			jedisRedisService.setParallelCodec(codecParallelism, codecParallelMinAttributes, codecParallelMinBytes);
+			if (sharedAttributes != null) {
+				jedisRedisService.setSharedAttributes(Set.copyOf(toList(sharedAttributes)), sharedAttributeCacheSize);
+			}
+			if (hotAttributes != null) {
+				jedisRedisService.setHotAttributes(Set.copyOf(toList(hotAttributes)));
+			}
+			jedisRedisService.setRecentSessionIndex(nodeName, warmRestartMaxSessions, sessionTimeoutSeconds);
+			createdService = jedisRedisService;
+		} else {
+			throw new IllegalArgumentException("Unknown backend:" + backend);
+		}
+		return createdService;
+	}
+
 	@Override
 	protected void startInternal() throws LifecycleException {
 		log.info("startInternal() starting ImprovedRedisSessionManager");
+		expiryWheel = new SessionExpiryWheel(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SLOTS, System.currentTimeMillis());
 		super.startInternal();
 		setState(LifecycleState.STARTING);
 		try {
+			uriIgnoreMatcher = new UriIgnoreMatcher(ignorePrefixes, ignoreSuffixes, ignoreExtensions);
 			installValve();
-			final String contextCookieName = getContext().getSessionCookieName();
-			if (contextCookieName == null) {
-				sessionCookieName = JSESSIONID;
-			} else {
-				sessionCookieName = contextCookieName;
-			}
 			sessionTimeoutSeconds = getContext().getSessionTimeout() * 60L;
 			if (keyPrefix == null) {
 				keyPrefix = trimToNull(getContext().getBaseName());
@@ -171,15 +849,61 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 							"keyPrefix was ROOT or could not be automatically determined. It must be specified in the redex-sm configuration");
 				}
 			}
+			if (nodeName == null) {
+				nodeName = getHostName() + ":" + keyPrefix;
+			}
 			if (nodeId == null) {
-				nodeId = getHostName() + ":" + keyPrefix + ":" + UUID.randomUUID();
+				nodeId = nodeName + ":" + UUID.randomUUID();
 			}
 			if (keyPassword == null || keyPassword.trim().isEmpty()) {
 				log.warn("startInternal() keyPassword is not set. Session attributes will be stored UNENCRYPTED in Redis.");
 			}
-			redisService = new JedisRedisService(redisUrl, keyPrefix, nodeId, keyPassword, keySalt, poolMinIdle, poolMaxIdle,
-					poolMaxTotal, poolMaxWaitMillis, poolMinEvictableIdleTimeMillis);
-			redisService.start(this);
+			circuitBreaker = new RedisCircuitBreaker(circuitBreakerFailureThreshold, circuitBreakerOpenMillis);
+			if (keyPassword != null && !keyPassword.trim().isEmpty()) {
+				sessionCodec = new SessionCodec(new EncryptionSupport(keyPassword, keySalt));
+			} else {
+				sessionCodec = new SessionCodec(null);
+			}
+			sessionCodec.setPrincipalCacheSize(principalCacheSize);
+			sessionCodec.setDeserializationFilter(deserializationFilter);
+			sessionCodec.addDecryptionKeys(toPreviousKeyPasswords(), toPreviousKeySalt());
+			sessionCodec.setKeyIds(encryptionKeyIds);
+			redisService = createRedisService();
+			if (backupSessions) {
+				if (redisService instanceof JedisRedisService) {
+					final String route = backupRoute != null ? backupRoute : getJvmRoute() != null ? getJvmRoute() : nodeName;
+					((JedisRedisService) redisService).setBackupRoute(route);
+					backupExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(backupMaxSessions),
+							(final Runnable runnable) -> {
+								final Thread thread = new Thread(runnable, "redex-backup-" + keyPrefix);
+								thread.setDaemon(true);
+								return thread;
+							});
+					backupTier = new SessionBackupTier(route, backupMaxSessions);
+				} else {
+					log.warn("startInternal() backupSessions is only supported by the redis backend; no backup copies are kept");
+				}
+			}
+			mergeEnabled = mergeWrites && redisService instanceof JedisRedisService;
+			if (mergeWrites && !mergeEnabled) {
+				log.warn("startInternal() mergeWrites is only supported by the redis backend; sessions are written in full");
+			}
+			sessionEventDispatcher = new SessionEventDispatcher(this, keyPrefix, eventDispatchThreads, eventQueueCapacity,
+					eventDispatchVirtualThreads);
+			redisService.start(sessionEventDispatcher);
+			heartbeatBackupNode();
+			if (redisService instanceof JedisRedisService) {
+				adaptivePoolSizer = ((JedisRedisService) redisService).getAdaptivePoolSizer();
+				sharedAttributeCache = ((JedisRedisService) redisService).getSharedAttributeCache();
+			}
+			try {
+				load();
+			} catch (final IOException e) {
+				log.warn("startInternal() could not read session snapshot; starting cold", e);
+			}
+			if (warmRestartMaxSessions > 0) {
+				prefetchRecentSessions();
+			}
 		} catch (final Exception e) {
 			log.error("startInternal() exception", e);
 			throw new LifecycleException(e);
@@ -194,7 +918,26 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		setState(LifecycleState.STOPPING);
 		try {
 			uninstallValve();
+			try {
+				unload();
+			} catch (final IOException e) {
+				log.error("stopInternal() could not write session snapshot", e);
+			}
+			if (backupTier != null) {
+				backupExecutor.shutdownNow();
+				backupExecutor = null;
+				pendingBackups.clear();
+				try {
+					((JedisRedisService) redisService).removeNode(backupTier.getRoute());
+				} catch (final RedisUnavailableException e) {
+					log.warn("stopInternal() redis unavailable, route:{} will time out on its own", backupTier.getRoute(), e);
+				}
+				backupTier = null;
+			}
 			redisService.close();
+			adaptivePoolSizer = null;
+			sharedAttributeCache = null;
+			sessionEventDispatcher.close();
 		} catch (final Exception e) {
 			log.error("stopInternal() exception", e);
 			throw new LifecycleException(e);
@@ -244,28 +987,35 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		}
 	}
 
-	protected String toSessionId(final Request request, final Response response) {
-		String sessionId;
-		final String setCookieHeader = response.getHeaders("Set-Cookie").stream()
-				.filter((final String predicate) -> predicate.startsWith(sessionCookieName)).findFirst().orElse(null);
-		if (setCookieHeader != null) {
-			int stop = setCookieHeader.indexOf(';');
-			if (stop == -1) {
-				stop = setCookieHeader.length();
-			}
-			sessionId = setCookieHeader.substring(setCookieHeader.indexOf('=') + 1, stop);
-		} else {
-			sessionId = null;
-			if (request.getCookies() != null) {
-				for (final Cookie cookie : request.getCookies()) {
-					if (sessionCookieName.equals(cookie.getName())) {
-						sessionId = cookie.getValue();
-						break;
-					}
-				}
+	/**
+	 * Resolve the session this request used, without parsing cookies or headers and without asking the request for it, which would load
+	 * a session the request never touched. The session accessed on the request thread is tracked by
+	 * {@link #sessionAccessed(ImprovedRedisSession)} until the request completes, so new sessions and session ids changed during the
+	 * request (including by an authenticator before this manager's valve) are found. Otherwise fall back to the requested session id,
+	 * which only resolves sessions already in the local cache.
+	 */
+	protected ImprovedRedisSession toSession(final Request request, final ImprovedRedisSession accessedSession) {
+		ImprovedRedisSession session = accessedSession;
+		if (session == null) {
+			final String requestedSessionId = request.getRequestedSessionId();
+			if (requestedSessionId != null) {
+				session = (ImprovedRedisSession) sessions.get(requestedSessionId);
 			}
 		}
-		return sessionId;
+		return session;
+	}
+
+	protected void sessionAccessed(final ImprovedRedisSession session) {
+		requestSession.set(session);
+	}
+
+	@Override
+	protected void changeSessionId(final Session session, final String newId, final boolean notifySessionListeners,
+			final boolean notifyContainerListeners) {
+		super.changeSessionId(session, newId, notifySessionListeners, notifyContainerListeners);
+		if (session instanceof ImprovedRedisSession) {
+			((ImprovedRedisSession) session).markAccessed();
+		}
 	}
 
 	public void setRedisUrl(final String redisUrl) {
@@ -276,6 +1026,90 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		this.ignorePattern = Pattern.compile(ignorePattern);
 	}
 
+	public void setIgnorePrefixes(final String ignorePrefixes) {
+		this.ignorePrefixes = ignorePrefixes;
+	}
+
+	public void setIgnoreSuffixes(final String ignoreSuffixes) {
+		this.ignoreSuffixes = ignoreSuffixes;
+	}
+
+	public void setIgnoreExtensions(final String ignoreExtensions) {
+		this.ignoreExtensions = ignoreExtensions;
+	}
+
+	public void setPoolAdaptive(final boolean poolAdaptive) {
+		this.poolAdaptive = poolAdaptive;
+	}
+
+	public void setPoolAdaptiveMaxTotal(final int poolAdaptiveMaxTotal) {
+		this.poolAdaptiveMaxTotal = poolAdaptiveMaxTotal;
+	}
+
+	public void setPoolAdaptiveTargetWaitMillis(final long poolAdaptiveTargetWaitMillis) {
+		this.poolAdaptiveTargetWaitMillis = poolAdaptiveTargetWaitMillis;
+	}
+
+	public void setChunkThresholdBytes(final int chunkThresholdBytes) {
+		this.chunkThresholdBytes = chunkThresholdBytes;
+	}
+
+	public void setChunkSizeBytes(final int chunkSizeBytes) {
+		this.chunkSizeBytes = chunkSizeBytes;
+	}
+
+	public void setPrincipalCacheSize(final int principalCacheSize) {
+		this.principalCacheSize = principalCacheSize;
+	}
+
+	public void setMergeWrites(final boolean mergeWrites) {
+		this.mergeWrites = mergeWrites;
+	}
+
+	public void setSessionLock(final boolean sessionLock) {
+		this.sessionLock = sessionLock;
+	}
+
+	public void setSessionLockPattern(final String sessionLockPattern) {
+		this.sessionLockPattern = Pattern.compile(sessionLockPattern);
+	}
+
+	public void setSessionLockLeaseMillis(final long sessionLockLeaseMillis) {
+		this.sessionLockLeaseMillis = sessionLockLeaseMillis;
+	}
+
+	public void setSessionLockWaitMillis(final long sessionLockWaitMillis) {
+		this.sessionLockWaitMillis = sessionLockWaitMillis;
+	}
+
+	public void setSharedAttributes(final String sharedAttributes) {
+		this.sharedAttributes = sharedAttributes;
+	}
+
+	public void setSharedAttributeCacheSize(final int sharedAttributeCacheSize) {
+		this.sharedAttributeCacheSize = sharedAttributeCacheSize;
+	}
+
+	public void setBackend(final String backend) {
+		this.backend = backend;
+	}
+
+	public void setStoreFile(final String storeFile) {
+		this.storeFile = storeFile;
+	}
+
+	public void setSnapshot(final boolean snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public void setSnapshotFile(final String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	public void setHotAttributes(final String hotAttributes) {
+		this.hotAttributes = hotAttributes;
+	}
+
 	public void setKeyPrefix(final String keyPrefix) {
 		this.keyPrefix = keyPrefix;
 	}
@@ -284,6 +1118,14 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		this.nodeId = nodeId;
 	}
 
+	public void setNodeName(final String nodeName) {
+		this.nodeName = nodeName;
+	}
+
+	public void setWarmRestartMaxSessions(final int warmRestartMaxSessions) {
+		this.warmRestartMaxSessions = warmRestartMaxSessions;
+	}
+
 	public void setKeyPassword(final String keyPassword) {
 		this.keyPassword = keyPassword;
 	}
@@ -292,6 +1134,26 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		this.keySalt = keySalt;
 	}
 
+	public void setPreviousKeyPasswords(final String previousKeyPasswords) {
+		this.previousKeyPasswords = previousKeyPasswords;
+	}
+
+	public void setPreviousKeySalt(final String previousKeySalt) {
+		this.previousKeySalt = previousKeySalt;
+	}
+
+	public void setEncryptionKeyIds(final boolean encryptionKeyIds) {
+		this.encryptionKeyIds = encryptionKeyIds;
+	}
+
+	public void setPackedMetadata(final boolean packedMetadata) {
+		this.packedMetadata = packedMetadata;
+	}
+
+	protected boolean isPackedMetadata() {
+		return packedMetadata;
+	}
+
 	public void setPoolMinIdle(final int poolMinIdle) {
 		this.poolMinIdle = poolMinIdle;
 	}
@@ -312,12 +1174,354 @@ public class ImprovedRedisSessionManager extends ManagerBase implements SessionR
 		this.poolMinEvictableIdleTimeMillis = poolMinEvictableIdleTimeMillis;
 	}
 
+	public void setRedisTimeoutMillis(final int redisTimeoutMillis) {
+		this.redisTimeoutMillis = redisTimeoutMillis;
+	}
+
+	public void setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+		this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+	}
+
+	public void setCircuitBreakerOpenMillis(final long circuitBreakerOpenMillis) {
+		this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+	}
+
+	public void setEventDispatchThreads(final int eventDispatchThreads) {
+		this.eventDispatchThreads = eventDispatchThreads;
+	}
+
+	public void setEventQueueCapacity(final int eventQueueCapacity) {
+		this.eventQueueCapacity = eventQueueCapacity;
+	}
+
+	public void setEventStreamMaxLength(final long eventStreamMaxLength) {
+		this.eventStreamMaxLength = eventStreamMaxLength;
+	}
+
+	public void setEventStreamBatchSize(final int eventStreamBatchSize) {
+		this.eventStreamBatchSize = eventStreamBatchSize;
+	}
+
+	public void setEventDispatchVirtualThreads(final boolean eventDispatchVirtualThreads) {
+		this.eventDispatchVirtualThreads = eventDispatchVirtualThreads;
+	}
+
+	public void setExpiryNotifications(final boolean expiryNotifications) {
+		this.expiryNotifications = expiryNotifications;
+	}
+
+	public void setRequestTimings(final boolean requestTimings) {
+		this.requestTimings = requestTimings;
+	}
+
+	public void setDeserializationFilter(final String deserializationFilter) {
+		this.deserializationFilter = deserializationFilter;
+	}
+
+	public int getResolvedClassCount() {
+		final SessionCodec currentCodec = sessionCodec;
+		return currentCodec == null ? 0 : currentCodec.getResolvedClassCount();
+	}
+
+	public void setBackupSessions(final boolean backupSessions) {
+		this.backupSessions = backupSessions;
+	}
+
+	public void setBackupRoute(final String backupRoute) {
+		this.backupRoute = backupRoute;
+	}
+
+	public void setBackupCookieName(final String backupCookieName) {
+		this.backupCookieName = backupCookieName;
+	}
+
+	public void setBackupNodeTimeoutMillis(final long backupNodeTimeoutMillis) {
+		this.backupNodeTimeoutMillis = backupNodeTimeoutMillis;
+	}
+
+	public void setBackupMaxSessions(final int backupMaxSessions) {
+		this.backupMaxSessions = backupMaxSessions;
+	}
+
+	public int getBackupSessionCount() {
+		final SessionBackupTier currentTier = backupTier;
+		return currentTier == null ? 0 : currentTier.size();
+	}
+
+	public long getBackupHitCount() {
+		final SessionBackupTier currentTier = backupTier;
+		return currentTier == null ? 0 : currentTier.getHitCount();
+	}
+
+	public long getBackupRefreshCount() {
+		final SessionBackupTier currentTier = backupTier;
+		return currentTier == null ? 0 : currentTier.getRefreshCount();
+	}
+
+	public int getLiveNodeCount() {
+		final SessionBackupTier currentTier = backupTier;
+		return currentTier == null ? 0 : currentTier.getLiveRoutes().size();
+	}
+
+	public void setCodecParallelism(final int codecParallelism) {
+		this.codecParallelism = codecParallelism;
+	}
+
+	public void setCodecParallelMinAttributes(final int codecParallelMinAttributes) {
+		this.codecParallelMinAttributes = codecParallelMinAttributes;
+	}
+
+	public void setCodecParallelMinBytes(final int codecParallelMinBytes) {
+		this.codecParallelMinBytes = codecParallelMinBytes;
+	}
+
+	public long getParallelCodecCount() {
+		return redisService instanceof JedisRedisService ? ((JedisRedisService) redisService).getParallelCodecCount() : 0;
+	}
+
+	public int getExpiryWheelSize() {
+		return expiryWheel == null ? 0 : expiryWheel.size();
+	}
+
+	public int getEventQueueDepth() {
+		return sessionEventDispatcher == null ? 0 : sessionEventDispatcher.getQueueDepth();
+	}
+
+	public long getEventProcessedCount() {
+		return sessionEventDispatcher == null ? 0 : sessionEventDispatcher.getProcessedCount();
+	}
+
+	public long getEventDedupedCount() {
+		return sessionEventDispatcher == null ? 0 : sessionEventDispatcher.getDedupedCount();
+	}
+
+	public long getEventOverflowCount() {
+		return sessionEventDispatcher == null ? 0 : sessionEventDispatcher.getOverflowCount();
+	}
+
+	public long getEventStreamBatchCount() {
+		final SessionEventStream sessionEventStream = toSessionEventStream();
+		return sessionEventStream == null ? 0 : sessionEventStream.getBatchCount();
+	}
+
+	public long getEventStreamEntryCount() {
+		final SessionEventStream sessionEventStream = toSessionEventStream();
+		return sessionEventStream == null ? 0 : sessionEventStream.getEntryCount();
+	}
+
+	protected SessionEventStream toSessionEventStream() {
+		return redisService instanceof JedisRedisService ? ((JedisRedisService) redisService).getSessionEventStream() : null;
+	}
+
+	public long getLocalHitCount() {
+		return localHitCount.sum();
+	}
+
+	public long getRedisHitCount() {
+		return redisHitCount.sum();
+	}
+
+	public long getSessionMissCount() {
+		return sessionMissCount.sum();
+	}
+
+	public long getPublishCount() {
+		return publishLatency.getCount();
+	}
+
+	public long getPublishLatencyP50Micros() {
+		return publishLatency.getPercentileMicros(50);
+	}
+
+	public long getPublishLatencyP99Micros() {
+		return publishLatency.getPercentileMicros(99);
+	}
+
+	public long getLoadLatencyP50Micros() {
+		return loadLatency.getPercentileMicros(50);
+	}
+
+	public long getLoadLatencyP99Micros() {
+		return loadLatency.getPercentileMicros(99);
+	}
+
+	public int getPoolMaxTotal() {
+		return adaptivePoolSizer == null ? poolMaxTotal : adaptivePoolSizer.getMaxTotal();
+	}
+
+	public int getPoolMaxIdle() {
+		return adaptivePoolSizer == null ? poolMaxIdle : adaptivePoolSizer.getMaxIdle();
+	}
+
+	public int getPoolMinIdle() {
+		return adaptivePoolSizer == null ? poolMinIdle : adaptivePoolSizer.getMinIdle();
+	}
+
+	public long getPoolGrowCount() {
+		return adaptivePoolSizer == null ? 0 : adaptivePoolSizer.getGrowCount();
+	}
+
+	public long getPoolShrinkCount() {
+		return adaptivePoolSizer == null ? 0 : adaptivePoolSizer.getShrinkCount();
+	}
+
+	public int getPoolDemand() {
+		return adaptivePoolSizer == null ? 0 : adaptivePoolSizer.getLastDemand();
+	}
+
+	public String getPoolLastDecision() {
+		return adaptivePoolSizer == null ? null : adaptivePoolSizer.getLastDecision();
+	}
+
+	public int getSessionLockCount() {
+		return sessionLocks.size();
+	}
+
+	public long getSessionLockLocalCount() {
+		return sessionLockLocalCount.sum();
+	}
+
+	public long getSessionLockTimeoutCount() {
+		return sessionLockTimeoutCount.sum();
+	}
+
+	public long getFencedWriteCount() {
+		return redisService instanceof JedisRedisService ? ((JedisRedisService) redisService).getFencedWriteCount() : 0;
+	}
+
+	public int getSharedValueCount() {
+		return sharedAttributeCache == null ? 0 : sharedAttributeCache.size();
+	}
+
+	public long getSharedValueHitCount() {
+		return sharedAttributeCache == null ? 0 : sharedAttributeCache.getHitCount();
+	}
+
+	public long getSharedValueMissCount() {
+		return sharedAttributeCache == null ? 0 : sharedAttributeCache.getMissCount();
+	}
+
+	public String getCircuitBreakerState() {
+		return circuitBreaker == null ? null : circuitBreaker.getState().name();
+	}
+
+	public int getDirtySessionCount() {
+		return dirtySessionIds.size();
+	}
+
+	public int getPendingRemovalCount() {
+		return pendingRemovals.size();
+	}
+
+	/**
+	 * Restores the local cache from the snapshot written by {@link #unload()}, if there is one. Sessions that were updated by another
+	 * node, destroyed, or expired since the snapshot was taken are skipped, found by comparing the stored version of each session in a
+	 * single pipelined pass. If the backend is unreachable the snapshot is trusted as is.
+	 */
 	@Override
 	public void load() throws ClassNotFoundException, IOException {
+		if (snapshot) {
+			final long timeStart = System.currentTimeMillis();
+			final Path snapshotPath = toSnapshotPath();
+			final List<SessionSnapshot.Entry> entries = SessionSnapshot.read(snapshotPath);
+			Files.deleteIfExists(snapshotPath);
+			if (!entries.isEmpty()) {
+				final Map<String, byte[]> storedVersions = loadStoredVersions(entries,
+						SessionChangeset.REDEX_VERSION.getBytes(StandardCharsets.UTF_8));
+				final ClassLoader classLoader = getContext().getLoader().getClassLoader();
+				final long timeNow = System.currentTimeMillis();
+				int restored = 0;
+				for (final SessionSnapshot.Entry entry : entries) {
+					try {
+						final Map<String, Object> sessionMap = sessionCodec.decode(entry.encodedMap, classLoader);
+						final SessionMetadata metadata = ImprovedRedisSession.toMetadata(sessionMap);
+						final int maxInactiveInterval = metadata.maxInactiveInterval;
+						boolean current = maxInactiveInterval <= 0 || timeNow - metadata.thisAccessedTime < maxInactiveInterval * 1000L;
+						if (current && storedVersions != null) {
+							final byte[] storedVersion = storedVersions.get(entry.sessionId);
+							final Object snapshotVersion = sessionMap.get(SessionChangeset.REDEX_VERSION);
+							current = storedVersion != null && snapshotVersion != null
+									&& Long.parseLong(new String(storedVersion, StandardCharsets.UTF_8)) <= (long) snapshotVersion;
+						}
+						if (current) {
+							for (final DeferredAttribute deferredAttribute : entry.deferredAttributes) {
+								sessionMap.put(SessionCodec.toAttributeName(new String(deferredAttribute.storageKey, StandardCharsets.UTF_8)),
+										deferredAttribute);
+							}
+							final ImprovedRedisSession session = toSession(sessionMap);
+							session.setIdInternal(entry.sessionId);
+							if (sessions.putIfAbsent(entry.sessionId, session) == null) {
+								if (storedVersions == null) {
+									// unvalidated; write the session back in full once the backend is reachable
+									dirtySessionIds.add(entry.sessionId);
+								}
+								scheduleExpiry(session);
+								session.activate();
+								restored++;
+							}
+						}
+					} catch (final Exception e) {
+						log.warn("load() could not restore sessionId:{}", entry.sessionId, e);
+					}
+				}
+				log.info("load() restored {} of {} sessions from snapshot in {}ms", restored, entries.size(),
+						System.currentTimeMillis() - timeStart);
+			}
+		}
 	}
 
+	/**
+	 * @return the stored version of each session, or null if the backend is unreachable
+	 */
+	protected Map<String, byte[]> loadStoredVersions(final List<SessionSnapshot.Entry> entries, final byte[] versionKey) {
+		Map<String, byte[]> storedVersions;
+		if (circuitBreaker.allowRequest()) {
+			boolean available = true;
+			try {
+				storedVersions = redisService.loadStoredFields(
+						entries.stream().map((final SessionSnapshot.Entry entry) -> entry.sessionId).toList(), versionKey);
+			} catch (final RedisUnavailableException e) {
+				available = false;
+				log.warn("loadStoredVersions() redis unavailable, restoring snapshot without validation", e);
+				storedVersions = null;
+			} finally {
+				circuitBreaker.record(available);
+			}
+		} else {
+			storedVersions = null;
+		}
+		return storedVersions;
+	}
+
+	/**
+	 * Writes the local cache to a snapshot in its stored form, so the next start of this node comes back warm.
+	 */
 	@Override
 	public void unload() throws IOException {
+		if (snapshot) {
+			final long timeStart = System.currentTimeMillis();
+			final List<SessionSnapshot.Entry> entries = new ArrayList<>();
+			for (final Session session : findSessions()) {
+				final ImprovedRedisSession redisSession = (ImprovedRedisSession) session;
+				if (redisSession.isValid()) {
+					final Principal principal = redisSession.getPrincipal();
+					final SessionChangeset sessionChangeset = new SessionChangeset(redisSession.getIdInternal(), nodeId, sessionTimeoutSeconds,
+							principal == null ? null : principal.getName());
+					redisSession.store(sessionChangeset);
+					final Map<byte[], byte[]> encodedMap = sessionCodec.encode(sessionChangeset);
+					encodedMap.put(SessionChangeset.REDEX_VERSION.getBytes(StandardCharsets.UTF_8),
+							Long.toString(redisSession.getVersion()).getBytes(StandardCharsets.UTF_8));
+					entries.add(new SessionSnapshot.Entry(redisSession.getIdInternal(), encodedMap, sessionChangeset.getRetainedAttributes()));
+				}
+			}
+			SessionSnapshot.write(toSnapshotPath(), entries);
+			log.info("unload() wrote {} sessions to snapshot in {}ms", entries.size(), System.currentTimeMillis() - timeStart);
+		}
+	}
+
+	protected Path toSnapshotPath() {
+		return snapshotFile == null ? Path.of(System.getProperty("catalina.base", "."), "work", "redex-" + keyPrefix + ".snapshot")
+				: Path.of(snapshotFile);
 	}
 
 	@Override
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with logarithmic buckets: four buckets per power of two microseconds, so any percentile is accurate to
+ * within 25%. Cheap enough to record every Redis round trip.
+ *
+ * @author jonathan.fisher
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	public void record(final long nanos) {
+		buckets.incrementAndGet(toBucket(Math.max(1, nanos / 1000)));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound in microseconds of the bucket holding that percentile, or 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(final double percentile) {
+		final long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		long percentileMicros = 0;
+		if (total > 0) {
+			final long rank = (long) Math.ceil(total * percentile / 100d);
+			long seen = 0;
+			for (int i = 0; i < counts.length && percentileMicros == 0; i++) {
+				seen += counts[i];
+				if (seen >= Math.max(1, rank)) {
+					percentileMicros = toUpperBound(i);
+				}
+			}
+		}
+		return percentileMicros;
+	}
+
+	protected static int toBucket(final long micros) {
+		final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		final int subBucket;
+		if (exponent < SUB_BUCKET_BITS) {
+			subBucket = (int) (micros - (1L << exponent));
+		} else {
+			subBucket = (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		}
+		return exponent * SUB_BUCKETS + subBucket;
+	}
+
+	protected static long toUpperBound(final int bucket) {
+		final int exponent = bucket / SUB_BUCKETS;
+		final int subBucket = bucket % SUB_BUCKETS;
+		final long upperBound;
+		if (exponent < SUB_BUCKET_BITS) {
+			upperBound = (1L << exponent) + subBucket + 1;
+		} else {
+			upperBound = (1L << exponent) + ((subBucket + 1L) << (exponent - SUB_BUCKET_BITS));
+		}
+		return upperBound;
+	}
+}
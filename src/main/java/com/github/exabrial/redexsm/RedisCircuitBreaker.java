@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Guards calls to Redis. After {@code failureThreshold} consecutive failures the breaker opens and calls are refused without touching
+ * the network for {@code openMillis}. After that a single probe call is let through; if it succeeds the breaker closes again.
+ *
+ * @author jonathan.fisher
+ */
+public class RedisCircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openMillis;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+	private volatile long openedAt;
+
+	public RedisCircuitBreaker(final int failureThreshold, final long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	public boolean allowRequest() {
+		final boolean allowed;
+		switch (state.get()) {
+			case CLOSED -> {
+				allowed = true;
+			}
+			case OPEN -> {
+				allowed = System.currentTimeMillis() - openedAt >= openMillis && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+			}
+			default -> {
+				allowed = false;
+			}
+		}
+		return allowed;
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+		state.set(State.CLOSED);
+	}
+
+	public void recordFailure() {
+		if (state.get() == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			openedAt = System.currentTimeMillis();
+			state.set(State.OPEN);
+		}
+	}
+
+	/**
+	 * Records the outcome of a call that {@link #allowRequest()} let through. Only Redis being unreachable counts as a failure; a call
+	 * that failed for any other reason still reached Redis, so it closes the breaker and gives back the half open probe.
+	 */
+	public void record(final boolean available) {
+		if (available) {
+			recordSuccess();
+		} else {
+			recordFailure();
+		}
+	}
+
+	public State getState() {
+		return state.get();
+	}
+}
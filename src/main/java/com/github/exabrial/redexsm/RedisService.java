@@ -15,11 +15,14 @@
  */
 package com.github.exabrial.redexsm;
 
+import java.util.Collection;
 import java.util.Map;
 
 import org.apache.catalina.Context;
 
+import com.github.exabrial.redexsm.model.DeferredAttribute;
 import com.github.exabrial.redexsm.model.SessionChangeset;
+import com.github.exabrial.redexsm.model.SessionLease;
 
 public interface RedisService {
 
@@ -27,9 +30,50 @@ public interface RedisService {
 
 	void close();
 
-	void publishChangeset(SessionChangeset sessionChangeset);
+	/**
+	 * @return false if a merging changeset found no stored session to merge into, in which case the session has to be written in full
+	 */
+	boolean publishChangeset(SessionChangeset sessionChangeset);
 
 	void remove(String sessionId);
 
+	/**
+	 * Load a session. Attributes that are not loaded yet may be returned as {@link DeferredAttribute} placeholders.
+	 */
 	Map<String, Object> loadSessionMap(String sessionId, Context context);
+
+	/**
+	 * Load attributes that {@link #loadSessionMap(String, Context)} deferred. Attributes no longer present in Redis are omitted.
+	 */
+	Map<String, Object> loadDeferredAttributes(String sessionId, Map<String, DeferredAttribute> deferredAttributes, Context context);
+
+	/**
+	 * Load the sessions this node was recently serving, keyed by session id. Used to warm the local cache on startup.
+	 */
+	Map<String, Map<String, Object>> loadRecentSessionMaps(Context context);
+
+	/**
+	 * Load one stored field of many sessions in a single pass, keyed by session id. Sessions that no longer exist, or lack the field,
+	 * are omitted.
+	 */
+	Map<String, byte[]> loadStoredFields(Collection<String> sessionIds, byte[] storageKey);
+
+	/**
+	 * Acquire the session's lease lock and, in the same round trip, load the session.
+	 *
+	 * @return the lease, or null if the lock is held by someone else
+	 */
+	SessionLease lockAndLoadSessionMap(String sessionId, long leaseMillis, Context context);
+
+	/**
+	 * Extend a lease still held by owner.
+	 *
+	 * @return false if the lease was lost
+	 */
+	boolean renewLock(String sessionId, String owner, long leaseMillis);
+
+	/**
+	 * Release a lease, unless it was lost to someone else in the meantime.
+	 */
+	void releaseLock(String sessionId, String owner);
 }
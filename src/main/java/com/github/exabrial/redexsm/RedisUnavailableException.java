@@ -0,0 +1,30 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+/**
+ * Thrown by a {@link RedisService} when Redis could not be reached in time (connection failure, socket timeout, or pool exhaustion),
+ * or when the file backend's store is full. Data and serialization errors are not reported with this exception.
+ *
+ * @author jonathan.fisher
+ */
+public class RedisUnavailableException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public RedisUnavailableException(final Throwable cause) {
+		super(cause);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Time spent on session I/O by the current request, so slow responses can be attributed to their sessions. The manager starts the
+ * timings when a request enters its valve and publishes them as request attributes when it leaves, which {@code AccessLogValve} can log
+ * with patterns like {@code %{redex.storeMicros}r}. Everything here runs on the request thread; nothing is recorded on other threads or
+ * when timings are disabled.
+ *
+ * @author jonathan.fisher
+ */
+public class RequestTimings {
+	/**
+	 * Time spent loading the session from Redis on a local cache miss, decoding included.
+	 */
+	public static final String LOAD_MICROS = "redex.loadMicros";
+	/**
+	 * Time spent serializing attributes for storage.
+	 */
+	public static final String ENCODE_MICROS = "redex.encodeMicros";
+	/**
+	 * Time spent encrypting serialized attributes.
+	 */
+	public static final String ENCRYPT_MICROS = "redex.encryptMicros";
+	/**
+	 * Time spent storing the session, encoding and encryption included.
+	 */
+	public static final String STORE_MICROS = "redex.storeMicros";
+	/**
+	 * Bytes of session fields and chunks written.
+	 */
+	public static final String BYTES_WRITTEN = "redex.bytesWritten";
+	private static final ThreadLocal<RequestTimings> current = new ThreadLocal<>();
+
+	protected long loadNanos;
+	protected long encodeNanos;
+	protected long encryptNanos;
+	protected long storeNanos;
+	protected long bytesWritten;
+
+	public static void start() {
+		current.set(new RequestTimings());
+	}
+
+	/**
+	 * Stops recording on this thread.
+	 *
+	 * @return the timings of the request, or null if they weren't started
+	 */
+	public static RequestTimings finish() {
+		final RequestTimings timings = current.get();
+		current.remove();
+		return timings;
+	}
+
+	public static void recordLoad(final long nanos) {
+		final RequestTimings timings = current.get();
+		if (timings != null) {
+			timings.loadNanos += nanos;
+		}
+	}
+
+	public static void recordEncode(final long nanos) {
+		final RequestTimings timings = current.get();
+		if (timings != null) {
+			timings.encodeNanos += nanos;
+		}
+	}
+
+	public static void recordEncrypt(final long nanos) {
+		final RequestTimings timings = current.get();
+		if (timings != null) {
+			timings.encryptNanos += nanos;
+		}
+	}
+
+	public static void recordStore(final long nanos) {
+		final RequestTimings timings = current.get();
+		if (timings != null) {
+			timings.storeNanos += nanos;
+		}
+	}
+
+	public static void recordBytesWritten(final long bytes) {
+		final RequestTimings timings = current.get();
+		if (timings != null) {
+			timings.bytesWritten += bytes;
+		}
+	}
+
+	public void setAttributes(final ServletRequest request) {
+		request.setAttribute(LOAD_MICROS, loadNanos / 1000);
+		request.setAttribute(ENCODE_MICROS, encodeNanos / 1000);
+		request.setAttribute(ENCRYPT_MICROS, encryptNanos / 1000);
+		request.setAttribute(STORE_MICROS, storeNanos / 1000);
+		request.setAttribute(BYTES_WRITTEN, bytesWritten);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm copies of the sessions this node is the failover target for, kept apart from the local session cache: they aren't active
+ * sessions of this node until a request for one arrives here, typically because its own node died.
+ *
+ * Each session's backup node is chosen among the live nodes other than the one writing it by rendezvous hashing, a form of consistent
+ * hashing: every node computes the same choice from the same set of routes, and a node joining or leaving only moves the sessions it
+ * wins or held.
+ *
+ * @author jonathan.fisher
+ */
+public class SessionBackupTier {
+	private final String route;
+	private final Map<String, Entry> entries;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong refreshCount = new AtomicLong();
+	private volatile List<String> liveRoutes = List.of();
+
+	/**
+	 * @param route the route of this node
+	 * @param maxSessions the most backup copies kept; the least recently refreshed are dropped first
+	 */
+	public SessionBackupTier(final String route, final int maxSessions) {
+		this.route = route;
+		entries = new LinkedHashMap<>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+				return size() > maxSessions;
+			}
+		};
+	}
+
+	public String getRoute() {
+		return route;
+	}
+
+	public void setLiveRoutes(final List<String> liveRoutes) {
+		this.liveRoutes = List.copyOf(liveRoutes);
+	}
+
+	public List<String> getLiveRoutes() {
+		return liveRoutes;
+	}
+
+	/**
+	 * @return the route of the live node, other than this one, that keeps the backup copy of the session, or null if there is none
+	 */
+	public String toBackupRoute(final String sessionId) {
+		String backupRoute = null;
+		long bestScore = 0;
+		final int sessionHash = sessionId.hashCode();
+		for (final String liveRoute : liveRoutes) {
+			if (!liveRoute.equals(route)) {
+				final long score = toScore(sessionHash, liveRoute);
+				if (backupRoute == null || Long.compareUnsigned(score, bestScore) > 0) {
+					backupRoute = liveRoute;
+					bestScore = score;
+				}
+			}
+		}
+		return backupRoute;
+	}
+
+	public synchronized void put(final String sessionId, final Map<String, Object> sessionMap) {
+		refreshCount.incrementAndGet();
+		entries.remove(sessionId);
+		entries.put(sessionId, new Entry(sessionMap, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Hands over a backup copy, which is no longer kept here.
+	 *
+	 * @return the decoded session, or null if there is no backup copy of it
+	 */
+	public synchronized Map<String, Object> take(final String sessionId) {
+		final Entry entry = entries.remove(sessionId);
+		if (entry != null) {
+			hitCount.incrementAndGet();
+		}
+		return entry == null ? null : entry.sessionMap;
+	}
+
+	public synchronized void remove(final String sessionId) {
+		entries.remove(sessionId);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Drops the copies that weren't refreshed since refreshedBefore; their sessions have expired unless they were written while this
+	 * node wasn't their backup.
+	 */
+	public synchronized void expire(final long refreshedBefore) {
+		entries.values().removeIf((final Entry entry) -> entry.refreshTime < refreshedBefore);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * Mixes the session and route hashes with the SplitMix64 finalizer. String hash codes are specified, so every node computes the
+	 * same scores.
+	 */
+	protected static long toScore(final int sessionHash, final String route) {
+		long score = (long) sessionHash << 32 | Integer.toUnsignedLong(route.hashCode());
+		score = (score ^ score >>> 30) * 0xbf58476d1ce4e5b9L;
+		score = (score ^ score >>> 27) * 0x94d049bb133111ebL;
+		return score ^ score >>> 31;
+	}
+
+	protected static class Entry {
+		protected final Map<String, Object> sessionMap;
+		protected final long refreshTime;
+
+		protected Entry(final Map<String, Object> sessionMap, final long refreshTime) {
+			this.sessionMap = sessionMap;
+			this.refreshTime = refreshTime;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hashed timing wheel of projected session expiry times. Advancing the wheel only visits the slots that came due since the last
+ * advance, so expiry processing touches the sessions that are actually due instead of the whole session map.
+ *
+ * Entries are not moved when a session is accessed; the caller re-schedules a session that turns out to still be valid when its slot
+ * comes due. A session may therefore sit in more than one slot, and callers must tolerate ids that are no longer cached. Scheduling
+ * shares a read lock, so request threads don't wait on each other, but never overlaps an advance, which could otherwise sweep a slot
+ * just before an entry is added to it.
+ *
+ * @author jonathan.fisher
+ */
+public class SessionExpiryWheel {
+	private final long tickMillis;
+	private final List<Map<String, Long>> slots;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private long currentTick;
+
+	public SessionExpiryWheel(final long tickMillis, final int slotCount, final long timeNow) {
+		this.tickMillis = tickMillis;
+		slots = new ArrayList<>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new ConcurrentHashMap<>());
+		}
+		currentTick = timeNow / tickMillis;
+	}
+
+	public void schedule(final String sessionId, final long expiryTime) {
+		lock.readLock().lock();
+		try {
+			final long tick = Math.max(expiryTime / tickMillis + 1, currentTick + 1);
+			slots.get(Math.floorMod(tick, slots.size())).merge(sessionId, tick, Math::min);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<String> advance(final long timeNow) {
+		final List<String> due = new ArrayList<>();
+		lock.writeLock().lock();
+		try {
+			final long nowTick = timeNow / tickMillis;
+			final long lastTick = Math.max(currentTick, nowTick - slots.size());
+			for (long tick = lastTick + 1; tick <= nowTick; tick++) {
+				final Iterator<Map.Entry<String, Long>> iterator = slots.get(Math.floorMod(tick, slots.size())).entrySet().iterator();
+				while (iterator.hasNext()) {
+					final Map.Entry<String, Long> entry = iterator.next();
+					if (entry.getValue() <= nowTick) {
+						iterator.remove();
+						due.add(entry.getKey());
+					}
+				}
+			}
+			currentTick = Math.max(currentTick, nowTick);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return due;
+	}
+
+	public int size() {
+		int size = 0;
+		for (final Map<String, Long> slot : slots) {
+			size += slot.size();
+		}
+		return size;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The local side of a session lease lock. Requests for the same session on this node queue on it before contending for the lease in
+ * Redis, and a lease that is still fresh is handed from one local request to the next without going back to Redis.
+ *
+ * @author jonathan.fisher
+ */
+public class SessionLock {
+	protected final String sessionId;
+	protected final ReentrantLock lock = new ReentrantLock(true);
+	/**
+	 * Requests holding or waiting for the lock; only changed while the lock table entry is being computed.
+	 */
+	protected volatile int users;
+	protected volatile String owner;
+	protected volatile long leaseExpiresMillis;
+
+	protected SessionLock(final String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	protected boolean tryLock(final long waitMillis) throws InterruptedException {
+		return lock.tryLock(waitMillis, TimeUnit.MILLISECONDS);
+	}
+
+	protected void unlock() {
+		if (lock.isHeldByCurrentThread()) {
+			lock.unlock();
+		}
+	}
+}
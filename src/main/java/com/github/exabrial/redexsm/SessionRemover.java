@@ -31,10 +31,31 @@ public interface SessionRemover {
 	 */
 	void evictSession(String sessionId);
 
+	/**
+	 * Evict a session from the local cache, and refresh this node's backup copy of it, since this node is its failover target. The
+	 * backup copy is loaded from Redis on the manager's own backup thread, never on the calling thread.
+	 *
+	 * @param sessionId
+	 */
+	void backupSession(String sessionId);
+
+	/**
+	 * Check a locally cached session's validity now, expiring it if it is past its maximum inactive interval.
+	 *
+	 * @param sessionId
+	 */
+	void expireSession(String sessionId);
+
 	/**
 	 * Evict a session from the local cache, but also call the session destruction routines.
 	 *
 	 * @param sessionId
 	 */
 	void destroySession(String sessionId);
+
+	/**
+	 * Evict every session from the local cache that has a current copy in Redis. Called when events may have been missed, for instance
+	 * after the event subscription was reconnected.
+	 */
+	void evictAll();
 }
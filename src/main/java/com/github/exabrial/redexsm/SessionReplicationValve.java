@@ -18,6 +18,7 @@ package com.github.exabrial.redexsm;
 import java.io.IOException;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
@@ -37,8 +38,11 @@ public class SessionReplicationValve extends ValveBase {
 			return;
 		} else {
 			try {
-				improvedRedisSessionManager.requestStarted(request, response);
-				getNext().invoke(request, response);
+				if (improvedRedisSessionManager.requestStarted(request, response)) {
+					getNext().invoke(request, response);
+				} else {
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				}
 			} finally {
 				improvedRedisSessionManager.requestComplete(request, response);
 			}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Matches request URIs against sets of prefixes, suffixes, and file extensions. A cheaper alternative to running a regular expression
+ * on every request for the common "ignore static assets" cases.
+ *
+ * @author jonathan.fisher
+ */
+public class UriIgnoreMatcher {
+	private final String[] prefixes;
+	private final String[] suffixes;
+	private final Set<String> extensions;
+
+	/**
+	 * @param prefixes comma separated URI prefixes, may be null
+	 * @param suffixes comma separated URI suffixes, may be null
+	 * @param extensions comma separated file extensions without the leading dot, may be null
+	 */
+	public UriIgnoreMatcher(final String prefixes, final String suffixes, final String extensions) {
+		this.prefixes = split(prefixes);
+		this.suffixes = split(suffixes);
+		this.extensions = Set.of(split(extensions));
+	}
+
+	public boolean matches(final String uri) {
+		final String path = stripPathParameters(uri);
+		boolean matches = false;
+		for (int i = 0; i < prefixes.length && !matches; i++) {
+			matches = path.startsWith(prefixes[i]);
+		}
+		for (int i = 0; i < suffixes.length && !matches; i++) {
+			matches = path.endsWith(suffixes[i]);
+		}
+		if (!matches && !extensions.isEmpty()) {
+			final int dot = path.lastIndexOf('.');
+			matches = dot > path.lastIndexOf('/') && extensions.contains(path.substring(dot + 1));
+		}
+		return matches;
+	}
+
+	/**
+	 * Drops the path parameters of the last segment, such as the {@code ;jsessionid=} of URL rewriting, which would otherwise hide its
+	 * suffix and extension.
+	 */
+	protected static String stripPathParameters(final String uri) {
+		final int semicolon = uri.indexOf(';', uri.lastIndexOf('/') + 1);
+		return semicolon < 0 ? uri : uri.substring(0, semicolon);
+	}
+
+	protected static String[] split(final String values) {
+		final String[] split;
+		if (values == null) {
+			split = new String[0];
+		} else {
+			split = Arrays.stream(values.split(",")).map(String::trim).filter((final String value) -> !value.isEmpty())
+					.collect(Collectors.toSet()).toArray(new String[0]);
+		}
+		return split;
+	}
+}
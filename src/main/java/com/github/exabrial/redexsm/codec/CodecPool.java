@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded fork-join pool that encodes or decodes the attributes of one large session in parallel, so loading or storing it isn't
+ * limited to the request thread while other cores are idle. Small sessions aren't worth the hand-off and stay on the request thread.
+ *
+ * Each task runs with the web application's class loader as the thread context class loader, as it would on the request thread, since
+ * custom {@code readObject} methods and the libraries they call may rely on it.
+ *
+ * @author jonathan.fisher
+ */
+public class CodecPool implements AutoCloseable {
+	private final ForkJoinPool forkJoinPool;
+	private final int minAttributes;
+	private final int minBytes;
+	private final AtomicLong parallelCount = new AtomicLong();
+
+	/**
+	 * @param parallelism the most threads used, shared by every session being encoded or decoded
+	 * @param minAttributes sessions with at least this many attributes are handled in parallel; 0 disables the check
+	 * @param minBytes sessions with at least this many stored bytes are handled in parallel; 0 disables the check
+	 */
+	public CodecPool(final int parallelism, final int minAttributes, final int minBytes, final String name) {
+		this.minAttributes = minAttributes;
+		this.minBytes = minBytes;
+		forkJoinPool = new ForkJoinPool(parallelism, (final ForkJoinPool pool) -> {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("redex-codec-" + name + "-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * @param bytes the stored size of the session, or 0 if it isn't known yet
+	 */
+	public boolean isParallel(final int attributes, final long bytes) {
+		return attributes > 1 && (minAttributes > 0 && attributes >= minAttributes || minBytes > 0 && bytes >= minBytes);
+	}
+
+	/**
+	 * Runs the tasks in the pool and waits for all of them.
+	 *
+	 * @return the results, in task order
+	 */
+	public <T> List<T> invokeAll(final List<Callable<T>> tasks, final ClassLoader classLoader) throws Exception {
+		parallelCount.incrementAndGet();
+		final List<Callable<T>> wrappedTasks = new ArrayList<>(tasks.size());
+		for (final Callable<T> task : tasks) {
+			wrappedTasks.add(() -> {
+				final Thread currentThread = Thread.currentThread();
+				final ClassLoader previousClassLoader = currentThread.getContextClassLoader();
+				currentThread.setContextClassLoader(classLoader);
+				try {
+					return task.call();
+				} finally {
+					currentThread.setContextClassLoader(previousClassLoader);
+				}
+			});
+		}
+		final List<T> results = new ArrayList<>(tasks.size());
+		try {
+			for (final Future<T> future : forkJoinPool.invokeAll(wrappedTasks)) {
+				results.add(future.get());
+			}
+		} catch (final ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+		return results;
+	}
+
+	public long getParallelCount() {
+		return parallelCount.get();
+	}
+
+	@Override
+	public void close() {
+		forkJoinPool.shutdownNow();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.codec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A session attribute encoded by {@link SessionCodec}, before it is written to a backend.
+ *
+ * @author jonathan.fisher
+ */
+public class EncodedAttribute {
+	public static final char INLINE = 't';
+	public static final char REFERENCE = 'r';
+	public static final char PLAINTEXT = 'p';
+	/**
+	 * Ciphertext prefixed with the id of the key it was encrypted with.
+	 */
+	public static final char CIPHERTEXT = 'k';
+	/**
+	 * Ciphertext written before key ids were stored.
+	 */
+	public static final char LEGACY_CIPHERTEXT = 'c';
+
+	public final String key;
+	public final String typeHeader;
+	/**
+	 * {@link #PLAINTEXT}, {@link #CIPHERTEXT} or {@link #LEGACY_CIPHERTEXT}
+	 */
+	public final char encryptionHeader;
+	/**
+	 * The serialized value, before encryption.
+	 */
+	public final byte[] encodedBytes;
+	/**
+	 * The serialized value as it is stored: encrypted unless plaintext.
+	 */
+	public final byte[] storedBytes;
+
+	public EncodedAttribute(final String key, final String typeHeader, final char encryptionHeader, final byte[] encodedBytes,
+			final byte[] storedBytes) {
+		this.key = key;
+		this.typeHeader = typeHeader;
+		this.encryptionHeader = encryptionHeader;
+		this.encodedBytes = encodedBytes;
+		this.storedBytes = storedBytes;
+	}
+
+	public boolean isPlaintext() {
+		return encryptionHeader == PLAINTEXT;
+	}
+
+	/**
+	 * @param storage {@link #INLINE} or {@link #REFERENCE}
+	 */
+	public byte[] toStorageKey(final char storage) {
+		return (typeHeader + encryptionHeader + storage + ":" + key).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import com.github.exabrial.redexsm.ImprovedRedisSession;
+import com.github.exabrial.redexsm.RequestTimings;
+import com.github.exabrial.redexsm.encryption.EncryptionSupport;
+import com.github.exabrial.redexsm.io.AutoDataInputStream;
+import com.github.exabrial.redexsm.io.AutoDataOutputStream;
+import com.github.exabrial.redexsm.io.ClassResolutionCache;
+import com.github.exabrial.redexsm.io.ClassloaderAwareObjectInputStream;
+import com.github.exabrial.redexsm.model.SessionChangeset;
+import com.github.exabrial.redexsm.model.SessionMetadata;
+
+/**
+ * Encodes session attributes to the stored form shared by every backend, and back. Each attribute is stored under a field name of the
+ * form {@code <encoding><type>:<p|k|c><t|r>:<name>}: {@code s} (Java serialization) or {@code d} (data stream) plus the written type,
+ * then plaintext, ciphertext, or ciphertext written without a key id, then whether the value is stored inline ({@code t}) or by
+ * reference ({@code r}).
+ *
+ * @author jonathan.fisher
+ */
+public class SessionCodec {
+	public static final List<String> plaintextAttributes = List.of(SessionChangeset.REDEX_NODE_ID, SessionChangeset.REDEX_SESSION_ID,
+			SessionChangeset.REDEX_UID, ImprovedRedisSession.REDEX_AUTHTYPE_ATTR, ImprovedRedisSession.REDEX_CREATION_TIME_ATTR,
+			ImprovedRedisSession.REDEX_IS_NEW_ATTR, ImprovedRedisSession.REDEX_IS_VALID_ATTR,
+			ImprovedRedisSession.REDEX_LAST_ACCESSED_TIME_ATTR, ImprovedRedisSession.REDEX_MAX_INACTIVE_INTERVAL_ATTR,
+			ImprovedRedisSession.REDEX_THIS_ACCESSED_TIME_ATTR, ImprovedRedisSession.REDEX_METADATA_ATTR);
+
+	private final EncryptionSupport encryptionSupport;
+	private volatile Map<ByteBuffer, Object> principalCache;
+	private final ClassResolutionCache classResolutionCache = new ClassResolutionCache();
+	private volatile ObjectInputFilter objectInputFilter;
+	private volatile boolean keyIds;
+
+	/**
+	 * @param encryptionSupport null to store everything as plaintext
+	 */
+	public SessionCodec(final EncryptionSupport encryptionSupport) {
+		this.encryptionSupport = encryptionSupport;
+	}
+
+	public EncodedAttribute encode(final String key, final Object value) throws IOException {
+		final long startTime = System.nanoTime();
+		final byte[] encodedBytes;
+		final String typeHeader;
+		final boolean isBasic = isBasic(value);
+		try (final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+			if (isBasic) {
+				try (AutoDataOutputStream ados = new AutoDataOutputStream(baos)) {
+					typeHeader = "d" + ados.writeValue(value) + ":";
+					ados.flush();
+				}
+			} else {
+				try (final ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+					typeHeader = "so:";
+					oos.writeObject(value);
+					oos.flush();
+				}
+			}
+			encodedBytes = baos.toByteArray();
+		}
+		final long encodedTime = System.nanoTime();
+		RequestTimings.recordEncode(encodedTime - startTime);
+		final char encryptionHeader;
+		final byte[] storedBytes;
+		if (encryptionSupport == null || plaintextAttributes.contains(key) || isBasic) {
+			encryptionHeader = EncodedAttribute.PLAINTEXT;
+			storedBytes = encodedBytes;
+		} else if (keyIds) {
+			encryptionHeader = EncodedAttribute.CIPHERTEXT;
+			storedBytes = encryptionSupport.encrypt(encodedBytes);
+			RequestTimings.recordEncrypt(System.nanoTime() - encodedTime);
+		} else {
+			encryptionHeader = EncodedAttribute.LEGACY_CIPHERTEXT;
+			storedBytes = encryptionSupport.encryptLegacy(encodedBytes);
+			RequestTimings.recordEncrypt(System.nanoTime() - encodedTime);
+		}
+		return new EncodedAttribute(key, typeHeader, encryptionHeader, encodedBytes, storedBytes);
+	}
+
+	/**
+	 * Encodes every attribute of the changeset, reusing the ones that are already encoded.
+	 */
+	public List<EncodedAttribute> encodeAttributes(final SessionChangeset sessionChangeset) {
+		try {
+			final List<EncodedAttribute> encodedAttributes = new ArrayList<>(sessionChangeset.getEncodedAttributes());
+			for (final Map.Entry<String, Object> entry : sessionChangeset.getSessionMap().entrySet()) {
+				encodedAttributes.add(encode(entry.getKey(), entry.getValue()));
+			}
+			return encodedAttributes;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Encodes every attribute of the changeset inline.
+	 */
+	public Map<byte[], byte[]> encode(final SessionChangeset sessionChangeset) {
+		final Map<byte[], byte[]> encodedMap = new HashMap<>();
+		for (final EncodedAttribute encodedAttribute : encodeAttributes(sessionChangeset)) {
+			encodedMap.put(encodedAttribute.toStorageKey(EncodedAttribute.INLINE), encodedAttribute.storedBytes);
+		}
+		return encodedMap;
+	}
+
+	/**
+	 * Decodes a value stored inline. Values stored by reference must be resolved by the backend first.
+	 */
+	public Object decode(final String fullKey, final byte[] storedBytes, final ClassLoader classLoader) throws Exception {
+		final char[] encryptionHeader = fullKey.substring(3, 5).toCharArray();
+		byte[] encodedBytes;
+		switch (encryptionHeader[0]) {
+			case EncodedAttribute.PLAINTEXT -> {
+				encodedBytes = storedBytes;
+			}
+			case EncodedAttribute.CIPHERTEXT -> {
+				requireEncryption();
+				encodedBytes = encryptionSupport.decrypt(storedBytes);
+			}
+			case EncodedAttribute.LEGACY_CIPHERTEXT -> {
+				requireEncryption();
+				encodedBytes = encryptionSupport.decryptLegacy(storedBytes);
+			}
+			default -> {
+				throw new RuntimeException("Unknown encryptionHeader prefix:" + fullKey);
+			}
+		}
+
+		final Object value;
+		final char[] valueEncodingHeader = fullKey.substring(0, 2).toCharArray();
+		final Map<ByteBuffer, Object> principals = principalCache;
+		if (principals != null && valueEncodingHeader[0] == 's'
+				&& ImprovedRedisSession.REDEX_PRINCIPAL_ATTR.equals(toAttributeName(fullKey))) {
+			final ByteBuffer principalKey = ByteBuffer.wrap(encodedBytes);
+			final Object cachedPrincipal = principals.get(principalKey);
+			if (cachedPrincipal != null) {
+				value = cachedPrincipal;
+			} else {
+				value = deserialize(encodedBytes, classLoader);
+				principals.put(principalKey, value);
+			}
+		} else {
+			value = decodeValue(fullKey, valueEncodingHeader, encodedBytes, classLoader);
+		}
+		return value;
+	}
+
+	protected Object deserialize(final byte[] encodedBytes, final ClassLoader classLoader) throws Exception {
+		try (final ByteArrayInputStream bais = new ByteArrayInputStream(encodedBytes);
+				final ObjectInputStream ois = new ClassloaderAwareObjectInputStream(classLoader, bais, classResolutionCache,
+						objectInputFilter)) {
+			return ois.readObject();
+		}
+	}
+
+	protected Object decodeValue(final String fullKey, final char[] valueEncodingHeader, final byte[] encodedBytes,
+			final ClassLoader classLoader) throws Exception {
+		final Object value;
+		switch (valueEncodingHeader[0]) {
+			case 's' -> {
+				value = deserialize(encodedBytes, classLoader);
+			}
+			case 'd' -> {
+				try (ByteArrayInputStream bais = new ByteArrayInputStream(encodedBytes);
+						AutoDataInputStream adis = new AutoDataInputStream(bais)) {
+					value = adis.readType(valueEncodingHeader[1]);
+				}
+			}
+			default -> {
+				throw new RuntimeException("Unknown encodingHeader prefix:" + fullKey);
+			}
+		}
+		return value;
+	}
+
+	protected void requireEncryption() {
+		if (encryptionSupport == null) {
+			throw new RuntimeException(
+					"Session data is encrypted but no keyPassword was configured. Set keyPassword to decrypt existing sessions.");
+		}
+	}
+
+	/**
+	 * Accept values encrypted with previous keys.
+	 *
+	 * @param keyPasswords passwords of the previous keys
+	 * @param keySalt salt the previous keys were derived with
+	 */
+	public void addDecryptionKeys(final List<String> keyPasswords, final String keySalt) {
+		if (encryptionSupport != null) {
+			for (final String keyPassword : keyPasswords) {
+				encryptionSupport.addDecryptionKey(keyPassword, keySalt);
+			}
+		}
+	}
+
+	/**
+	 * Write ciphertext with the id of its key. Versions without key rotation can't read it, so leave this off until every node can.
+	 */
+	public void setKeyIds(final boolean keyIds) {
+		this.keyIds = keyIds;
+	}
+
+	/**
+	 * Share decoded principals between sessions. Sessions of the same user usually carry an identical principal, and deserializing it
+	 * is one of the larger costs of loading a session. Principals must be immutable for this to be safe, which Tomcat's
+	 * {@code GenericPrincipal} is.
+	 *
+	 * @param principalCacheSize maximum number of distinct principals kept; 0 disables sharing
+	 */
+	public void setPrincipalCacheSize(final int principalCacheSize) {
+		if (principalCacheSize > 0) {
+			principalCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Object> eldest) {
+					return size() > principalCacheSize;
+				}
+			});
+		} else {
+			principalCache = null;
+		}
+	}
+
+	/**
+	 * Checks every Java serialized attribute against a filter before its objects are created, so unexpected classes and oversized or
+	 * deeply nested object graphs are rejected before they cost anything. A JVM wide filter ({@code jdk.serialFilter}) still applies.
+	 *
+	 * @param deserializationFilter a pattern in the {@code jdk.serialFilter} syntax, such as
+	 *          {@code maxdepth=20;maxbytes=1048576;com.example.**;java.**;!*}; null disables filtering
+	 */
+	public void setDeserializationFilter(final String deserializationFilter) {
+		objectInputFilter = deserializationFilter == null || deserializationFilter.isBlank() ? null
+				: ObjectInputFilter.Config.createFilter(deserializationFilter);
+	}
+
+	public int getResolvedClassCount() {
+		return classResolutionCache.size();
+	}
+
+	/**
+	 * Decodes a whole session stored inline.
+	 *
+	 * @return the session attributes, or null if encodedMap is empty
+	 */
+	public Map<String, Object> decode(final Map<byte[], byte[]> encodedMap, final ClassLoader classLoader) {
+		try {
+			final Map<String, Object> sessionMap;
+			if (encodedMap == null || encodedMap.isEmpty()) {
+				sessionMap = null;
+			} else {
+				sessionMap = new HashMap<>();
+				for (final Map.Entry<byte[], byte[]> entry : encodedMap.entrySet()) {
+					final String fullKey = new String(entry.getKey(), StandardCharsets.UTF_8);
+					if (SessionChangeset.REDEX_VERSION.equals(fullKey)) {
+						sessionMap.put(fullKey, Long.parseLong(new String(entry.getValue(), StandardCharsets.UTF_8)));
+					} else {
+						sessionMap.put(toAttributeName(fullKey), decode(fullKey, entry.getValue(), classLoader));
+					}
+				}
+			}
+			return sessionMap;
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A hex digest identifying the attribute's content. Keyed when the value is encrypted, so it reveals nothing to someone without the
+	 * key.
+	 */
+	public String digest(final EncodedAttribute encodedAttribute) {
+		try {
+			final byte[] digest;
+			if (encodedAttribute.isPlaintext()) {
+				digest = MessageDigest.getInstance("SHA-256").digest(encodedAttribute.encodedBytes);
+			} else {
+				digest = encryptionSupport.digest(encodedAttribute.encodedBytes);
+			}
+			return HexFormat.of().formatHex(digest);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toAttributeName(final String fullKey) {
+		return fullKey.substring(6);
+	}
+
+	public static boolean isReference(final String fullKey) {
+		return fullKey.charAt(4) == EncodedAttribute.REFERENCE;
+	}
+
+	public static char toEncryptionHeader(final String fullKey) {
+		return fullKey.charAt(3);
+	}
+
+	public static String toTypeHeader(final String fullKey) {
+		return fullKey.substring(0, 3);
+	}
+
+	public static boolean isBasic(final Object value) {
+		return ClassUtils.isPrimitiveOrWrapper(value.getClass()) || value instanceof String || value instanceof SessionMetadata;
+	}
+}
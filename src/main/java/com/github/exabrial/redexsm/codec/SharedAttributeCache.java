@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.codec;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local cache of decoded values of shared attributes, by content digest. Sessions referencing the same digest share one decoded
+ * instance, and writing a session that still holds a cached instance reuses its stored form instead of serializing it again. Values
+ * must therefore never be modified once shared.
+ *
+ * @author jonathan.fisher
+ */
+public class SharedAttributeCache {
+	private final Map<String, SharedValue> byDigest;
+	private final Map<Object, SharedValue> byInstance = new IdentityHashMap<>();
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	public SharedAttributeCache(final int maxEntries) {
+		byDigest = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, SharedValue> eldest) {
+				final boolean remove = size() > maxEntries;
+				if (remove) {
+					byInstance.remove(eldest.getValue().value);
+				}
+				return remove;
+			}
+		};
+	}
+
+	/**
+	 * @return the shared instance for the digest, or null if it isn't cached
+	 */
+	public synchronized Object get(final String digest) {
+		final SharedValue sharedValue = byDigest.get(digest);
+		if (sharedValue == null) {
+			missCount.increment();
+		} else {
+			hitCount.increment();
+		}
+		return sharedValue == null ? null : sharedValue.value;
+	}
+
+	/**
+	 * @return the cached entry if this exact instance is shared, or null
+	 */
+	public synchronized SharedValue find(final Object value) {
+		return byInstance.get(value);
+	}
+
+	/**
+	 * Shares a value. If another instance is already shared under the same digest, that one is kept and returned.
+	 */
+	public synchronized Object put(final SharedValue sharedValue) {
+		SharedValue shared = byDigest.get(sharedValue.digest);
+		if (shared == null) {
+			shared = sharedValue;
+			byDigest.put(shared.digest, shared);
+			byInstance.put(shared.value, shared);
+		}
+		return shared.value;
+	}
+
+	public synchronized int size() {
+		return byDigest.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * A shared value along with its stored form, which doesn't depend on the attribute name it is stored under.
+	 */
+	public static class SharedValue {
+		public final Object value;
+		public final String digest;
+		public final String typeHeader;
+		public final char encryptionHeader;
+		public final byte[] storedBytes;
+
+		public SharedValue(final Object value, final String digest, final String typeHeader, final char encryptionHeader,
+				final byte[] storedBytes) {
+			this.value = value;
+			this.digest = digest;
+			this.typeHeader = typeHeader;
+			this.encryptionHeader = encryptionHeader;
+			this.storedBytes = storedBytes;
+		}
+
+		/**
+		 * @return the stored form under the given attribute name; the unencrypted bytes are not kept
+		 */
+		public EncodedAttribute toEncodedAttribute(final String key) {
+			return new EncodedAttribute(key, typeHeader, encryptionHeader, null, storedBytes);
+		}
+	}
+}
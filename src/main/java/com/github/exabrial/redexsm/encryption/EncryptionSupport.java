@@ -15,15 +15,23 @@
 package com.github.exabrial.redexsm.encryption;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.GCMParameterSpec;
@@ -39,24 +47,43 @@ public class EncryptionSupport {
 	private static final int AES_KEY_LENGTH = 128;
 	private static final int AES_GCM_IV_LENGTH = 12;
 
+	private static final String HMAC_SHA256 = "HmacSHA256";
+	private static final byte[] DIGEST_KEY_LABEL = "redex:digest".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] KEY_ID_LABEL = "redex:keyId".getBytes(StandardCharsets.UTF_8);
+	private static final int KEY_ID_LENGTH = 4;
+
 	private static final String KEYGEN_ALGO = "PBKDF2WithHmacSHA256";
 	private static final int KEYGEN_ITERATIONS = 64 * 1024;
+	/**
+	 * Keys already derived in this JVM, so web applications sharing a password only pay for PBKDF2 once.
+	 */
+	private static final Map<String, SecretKey> derivedKeys = new ConcurrentHashMap<>();
 
-	private final byte[] keygenSalt;
 	private final SecretKey secretKey;
+	private final int keyId;
+	private final SecretKey digestKey;
 	private final SecureRandom secureRandom;
+	/**
+	 * Every key that can decrypt, by key id, the encryption key included.
+	 */
+	private final Map<Integer, SecretKey> decryptionKeys = new ConcurrentHashMap<>();
+	/**
+	 * The same keys, encryption key first, for ciphertext written before key ids were stored.
+	 */
+	private final List<SecretKey> legacyKeys = new CopyOnWriteArrayList<>();
 
 	public EncryptionSupport(final String keyPassword, final String keySalt) {
 		if (keyPassword == null) {
 			throw new RuntimeException("An encryption key keyPassword was not set");
 		} else {
-			if (keySalt != null && !keySalt.trim().isEmpty()) {
-				keygenSalt = Base64.getDecoder().decode(keySalt);
-			} else {
-				keygenSalt = DEFAULT_SALT;
-			}
-			secretKey = (SecretKey) keyFromPassword(keyPassword.toCharArray());
+			secretKey = toSecretKey(keyPassword, keySalt);
+			keyId = toKeyId(secretKey);
+			decryptionKeys.put(keyId, secretKey);
+			legacyKeys.add(secretKey);
 			try {
+				final Mac mac = Mac.getInstance(HMAC_SHA256);
+				mac.init(new SecretKeySpec(secretKey.getEncoded(), HMAC_SHA256));
+				digestKey = new SecretKeySpec(mac.doFinal(DIGEST_KEY_LABEL), HMAC_SHA256);
 				secureRandom = SecureRandom.getInstanceStrong();
 			} catch (final Exception e) {
 				throw new RuntimeException(e);
@@ -64,19 +91,75 @@ public class EncryptionSupport {
 		}
 	}
 
+	/**
+	 * Accept ciphertext written with an older key, so the key can be rotated without invalidating stored sessions. Values are
+	 * re-encrypted with the current key the next time they're written.
+	 */
+	public void addDecryptionKey(final String keyPassword, final String keySalt) {
+		final SecretKey decryptionKey = toSecretKey(keyPassword, keySalt);
+		if (decryptionKeys.putIfAbsent(toKeyId(decryptionKey), decryptionKey) == null) {
+			legacyKeys.add(decryptionKey);
+		}
+	}
+
+	/**
+	 * Decrypts a message written by {@link #encrypt(byte[])}, with the key its key id names.
+	 */
 	public byte[] decrypt(final byte[] cipherMessage) {
+		final SecretKey decryptionKey = decryptionKeys.get(ByteBuffer.wrap(cipherMessage, 0, KEY_ID_LENGTH).getInt());
+		if (decryptionKey == null) {
+			throw new RuntimeException("No keyPassword configured for the key this value was encrypted with");
+		}
 		try {
-			final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
-			final AlgorithmParameterSpec gcmIv = new GCMParameterSpec(AES_KEY_LENGTH, cipherMessage, 0, AES_GCM_IV_LENGTH);
-			cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmIv);
-			final byte[] plainText = cipher.doFinal(cipherMessage, AES_GCM_IV_LENGTH, cipherMessage.length - AES_GCM_IV_LENGTH);
-			return plainText;
+			return decrypt(decryptionKey, cipherMessage, KEY_ID_LENGTH);
 		} catch (final Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Decrypts a message written before key ids were stored, trying every key, the current one first.
+	 */
+	public byte[] decryptLegacy(final byte[] cipherMessage) {
+		byte[] plainText = null;
+		for (final SecretKey decryptionKey : legacyKeys) {
+			try {
+				plainText = decrypt(decryptionKey, cipherMessage, 0);
+				break;
+			} catch (final AEADBadTagException e) {
+				// not this key
+			} catch (final Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (plainText == null) {
+			throw new RuntimeException("None of the configured keys can decrypt this value");
+		}
+		return plainText;
+	}
+
+	protected byte[] decrypt(final SecretKey decryptionKey, final byte[] cipherMessage, final int offset) throws Exception {
+		final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+		final AlgorithmParameterSpec gcmIv = new GCMParameterSpec(AES_KEY_LENGTH, cipherMessage, offset, AES_GCM_IV_LENGTH);
+		cipher.init(Cipher.DECRYPT_MODE, decryptionKey, gcmIv);
+		return cipher.doFinal(cipherMessage, offset + AES_GCM_IV_LENGTH, cipherMessage.length - offset - AES_GCM_IV_LENGTH);
+	}
+
+	/**
+	 * @return the key id of the current key, the IV, then the ciphertext
+	 */
 	public byte[] encrypt(final byte[] plainText) {
+		return encrypt(plainText, true);
+	}
+
+	/**
+	 * @return the IV, then the ciphertext, readable by {@link #decryptLegacy(byte[])} on versions that don't know key ids
+	 */
+	public byte[] encryptLegacy(final byte[] plainText) {
+		return encrypt(plainText, false);
+	}
+
+	protected byte[] encrypt(final byte[] plainText, final boolean withKeyId) {
 		try {
 			final byte[] iv = new byte[AES_GCM_IV_LENGTH];
 			secureRandom.nextBytes(iv);
@@ -84,7 +167,10 @@ public class EncryptionSupport {
 			final GCMParameterSpec parameterSpec = new GCMParameterSpec(AES_KEY_LENGTH, iv);
 			cipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
 			final byte[] cipherText = cipher.doFinal(plainText);
-			final ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + cipherText.length);
+			final ByteBuffer byteBuffer = ByteBuffer.allocate((withKeyId ? KEY_ID_LENGTH : 0) + iv.length + cipherText.length);
+			if (withKeyId) {
+				byteBuffer.putInt(keyId);
+			}
 			byteBuffer.put(iv);
 			byteBuffer.put(cipherText);
 			return byteBuffer.array();
@@ -93,7 +179,56 @@ public class EncryptionSupport {
 		}
 	}
 
-	protected Key keyFromPassword(final char[] password) {
+	/**
+	 * A keyed digest of the plaintext, so equal values can be recognized without revealing anything about their content to someone
+	 * without the key.
+	 */
+	public byte[] digest(final byte[] plainText) {
+		try {
+			final Mac mac = Mac.getInstance(HMAC_SHA256);
+			mac.init(digestKey);
+			return mac.doFinal(plainText);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected SecretKey toSecretKey(final String keyPassword, final String keySalt) {
+		final byte[] keygenSalt;
+		if (keySalt != null && !keySalt.trim().isEmpty()) {
+			keygenSalt = Base64.getDecoder().decode(keySalt);
+		} else {
+			keygenSalt = DEFAULT_SALT;
+		}
+		return derivedKeys.computeIfAbsent(toDerivedKeyId(keyPassword, keygenSalt),
+				(final String derivedKeyId) -> (SecretKey) keyFromPassword(keyPassword.toCharArray(), keygenSalt));
+	}
+
+	/**
+	 * A short identifier of the key, stored with the ciphertext. Derived with a one-way function, so it reveals nothing about the key.
+	 */
+	protected int toKeyId(final SecretKey key) {
+		try {
+			final Mac mac = Mac.getInstance(HMAC_SHA256);
+			mac.init(new SecretKeySpec(key.getEncoded(), HMAC_SHA256));
+			return ByteBuffer.wrap(mac.doFinal(KEY_ID_LABEL)).getInt();
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected String toDerivedKeyId(final String keyPassword, final byte[] keygenSalt) {
+		try {
+			final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+			messageDigest.update(keygenSalt);
+			messageDigest.update(keyPassword.getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(messageDigest.digest());
+		} catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected Key keyFromPassword(final char[] password, final byte[] keygenSalt) {
 		try {
 			final SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGO);
 			final KeySpec spec = new PBEKeySpec(password, keygenSalt, KEYGEN_ITERATIONS, AES_KEY_LENGTH);
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.catalina.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.exabrial.redexsm.RedisService;
+import com.github.exabrial.redexsm.RedisUnavailableException;
+import com.github.exabrial.redexsm.RequestTimings;
+import com.github.exabrial.redexsm.SessionRemover;
+import com.github.exabrial.redexsm.codec.SessionCodec;
+import com.github.exabrial.redexsm.model.DeferredAttribute;
+import com.github.exabrial.redexsm.model.SessionChangeset;
+import com.github.exabrial.redexsm.model.SessionLease;
+
+/**
+ * Stores sessions in a local, memory mapped, append only file instead of Redis. Meant for single node and edge deployments that want
+ * sessions to survive a restart without a Redis hop, and as a dependency free backend for tests. There are no other nodes, so no
+ * events are published or received.
+ *
+ * Every write appends a record holding the whole encoded session (or a removal marker), and an in-memory index points at the latest
+ * record of each session. Like the Redis backend, every write stores the session's next version, so snapshots can be checked against
+ * it. On startup the file is replayed to rebuild the index; a torn record at the end is detected by its CRC and
+ * discarded. Expired sessions are dropped from the index lazily and by a periodic sweep, and the file is compacted by rewriting the live
+ * records to a new file once most of it is garbage.
+ *
+ * Records are written to the page cache, so they survive a crash of the JVM but not necessarily of the operating system.
+ *
+ * @author jonathan.fisher
+ */
+public class MappedFileRedisService implements Closeable, RedisService {
+	private static final Logger log = LoggerFactory.getLogger(MappedFileRedisService.class);
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final int MIN_CAPACITY = 16 * 1024 * 1024;
+	private static final long MIN_COMPACT_BYTES = 4 * 1024 * 1024;
+	private static final long SWEEP_INTERVAL_SECONDS = 60;
+	private static final byte[] VERSION_KEY = SessionChangeset.REDEX_VERSION.getBytes(StandardCharsets.UTF_8);
+	private static final int VERSION_DIGITS = 19;
+
+	private final Path path;
+	private final String keyPrefix;
+	private final SessionCodec sessionCodec;
+	private final Map<String, Entry> index = new ConcurrentHashMap<>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private int recentSessionLimit;
+	private FileChannel fileChannel;
+	private MappedByteBuffer buffer;
+	private int writePosition;
+	private long garbageBytes;
+	private ScheduledExecutorService sweepExecutor;
+
+	public MappedFileRedisService(final Path path, final String keyPrefix, final SessionCodec sessionCodec) {
+		this.path = path;
+		this.keyPrefix = keyPrefix;
+		this.sessionCodec = sessionCodec;
+	}
+
+	@Override
+	public void start(final SessionRemover sessionRemover) {
+		lock.writeLock().lock();
+		try {
+			Files.createDirectories(path.toAbsolutePath().getParent());
+			open(path);
+			replay();
+			log.info("start() opened path:{} sessions:{} bytes:{} garbageBytes:{}", path, index.size(), writePosition, garbageBytes);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		sweepExecutor = Executors.newSingleThreadScheduledExecutor((final Runnable runnable) -> {
+			final Thread thread = new Thread(runnable, "redex-file-" + keyPrefix);
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweepExecutor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void close() {
+		sweepExecutor.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			buffer.force();
+			fileChannel.close();
+			buffer = null;
+			fileChannel = null;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean publishChangeset(final SessionChangeset sessionChangeset) {
+		final Map<byte[], byte[]> encodedMap = sessionCodec.encode(sessionChangeset);
+		long bytesWritten = 0;
+		for (final Map.Entry<byte[], byte[]> entry : encodedMap.entrySet()) {
+			bytesWritten += entry.getKey().length + entry.getValue().length;
+		}
+		RequestTimings.recordBytesWritten(bytesWritten);
+		final long expiryTime = System.currentTimeMillis() + sessionChangeset.getExpirationInSeconds() * 1000;
+		sessionChangeset.setVersion(append(OP_PUT, sessionChangeset.getSessionId(), expiryTime, encodedMap));
+		return true;
+	}
+
+	@Override
+	public void remove(final String sessionId) {
+		if (index.containsKey(sessionId)) {
+			append(OP_REMOVE, sessionId, 0, Map.of());
+		}
+	}
+
+	@Override
+	public Map<String, Object> loadSessionMap(final String sessionId, final Context context) {
+		return sessionCodec.decode(read(sessionId), context.getLoader().getClassLoader());
+	}
+
+	@Override
+	public Map<String, Object> loadDeferredAttributes(final String sessionId, final Map<String, DeferredAttribute> deferredAttributes,
+			final Context context) {
+		final Map<byte[], byte[]> encodedMap = read(sessionId);
+		final Map<String, Object> attributes = new HashMap<>();
+		if (encodedMap != null) {
+			final Map<String, Object> sessionMap = sessionCodec.decode(encodedMap, context.getLoader().getClassLoader());
+			for (final String name : deferredAttributes.keySet()) {
+				if (sessionMap.containsKey(name)) {
+					attributes.put(name, sessionMap.get(name));
+				}
+			}
+		}
+		return attributes;
+	}
+
+	@Override
+	public Map<String, Map<String, Object>> loadRecentSessionMaps(final Context context) {
+		final Map<String, Map<String, Object>> sessionMaps = new HashMap<>();
+		final ClassLoader classLoader = context.getLoader().getClassLoader();
+		final long timeNow = System.currentTimeMillis();
+		index.entrySet().stream().filter((final Map.Entry<String, Entry> entry) -> entry.getValue().expiryTime > timeNow)
+				.sorted(Comparator.comparingInt((final Map.Entry<String, Entry> entry) -> entry.getValue().offset).reversed())
+				.limit(recentSessionLimit).forEach((final Map.Entry<String, Entry> entry) -> {
+					try {
+						final Map<String, Object> sessionMap = sessionCodec.decode(read(entry.getKey()), classLoader);
+						if (sessionMap != null) {
+							sessionMaps.put(entry.getKey(), sessionMap);
+						}
+					} catch (final RuntimeException e) {
+						log.warn("loadRecentSessionMaps() could not decode sessionId:{}", entry.getKey(), e);
+					}
+				});
+		return sessionMaps;
+	}
+
+	@Override
+	public Map<String, byte[]> loadStoredFields(final Collection<String> sessionIds, final byte[] storageKey) {
+		final Map<String, byte[]> storedFields = new HashMap<>();
+		for (final String sessionId : sessionIds) {
+			final Map<byte[], byte[]> encodedMap = read(sessionId);
+			if (encodedMap != null) {
+				for (final Map.Entry<byte[], byte[]> field : encodedMap.entrySet()) {
+					if (Arrays.equals(storageKey, field.getKey())) {
+						storedFields.put(sessionId, field.getValue());
+					}
+				}
+			}
+		}
+		return storedFields;
+	}
+
+	/**
+	 * The store belongs to a single node, so the local side of the lock is all there is: the lease always succeeds, and the local cache
+	 * is already current.
+	 */
+	@Override
+	public SessionLease lockAndLoadSessionMap(final String sessionId, final long leaseMillis, final Context context) {
+		return new SessionLease(keyPrefix, null);
+	}
+
+	@Override
+	public boolean renewLock(final String sessionId, final String owner, final long leaseMillis) {
+		return true;
+	}
+
+	@Override
+	public void releaseLock(final String sessionId, final String owner) {
+	}
+
+	/**
+	 * @param recentSessionLimit maximum number of sessions returned by {@link #loadRecentSessionMaps(Context)}
+	 */
+	public void setRecentSessionLimit(final int recentSessionLimit) {
+		this.recentSessionLimit = recentSessionLimit;
+	}
+
+	public int getSessionCount() {
+		return index.size();
+	}
+
+	public long getStoreBytes() {
+		return writePosition;
+	}
+
+	public long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+	protected Map<byte[], byte[]> read(final String sessionId) {
+		lock.readLock().lock();
+		try {
+			final Entry entry = index.get(sessionId);
+			final Map<byte[], byte[]> encodedMap;
+			if (entry == null) {
+				encodedMap = null;
+			} else if (entry.expiryTime <= System.currentTimeMillis()) {
+				encodedMap = null;
+			} else {
+				final ByteBuffer record = buffer.duplicate();
+				record.position(entry.offset + RECORD_HEADER_BYTES + 1 + Long.BYTES);
+				record.position(record.position() + Integer.BYTES + record.getInt(record.position()));
+				final int fieldCount = record.getInt();
+				encodedMap = new HashMap<>(fieldCount * 2);
+				for (int i = 0; i < fieldCount; i++) {
+					final byte[] key = new byte[record.getInt()];
+					record.get(key);
+					final byte[] value = new byte[record.getInt()];
+					record.get(value);
+					encodedMap.put(key, value);
+				}
+			}
+			return encodedMap;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the version the session was stored as, or 0 for a removal
+	 */
+	protected long append(final byte op, final String sessionId, final long expiryTime, final Map<byte[], byte[]> encodedMap) {
+		final byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+		final boolean versioned = op == OP_PUT;
+		int payloadLength = 1 + Long.BYTES + Integer.BYTES + id.length + Integer.BYTES;
+		for (final Map.Entry<byte[], byte[]> field : encodedMap.entrySet()) {
+			payloadLength += Integer.BYTES * 2 + field.getKey().length + field.getValue().length;
+		}
+		if (versioned) {
+			payloadLength += Integer.BYTES * 2 + VERSION_KEY.length + VERSION_DIGITS;
+		}
+		final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+		payload.put(op);
+		payload.putLong(expiryTime);
+		payload.putInt(id.length);
+		payload.put(id);
+		payload.putInt(encodedMap.size() + (versioned ? 1 : 0));
+		for (final Map.Entry<byte[], byte[]> field : encodedMap.entrySet()) {
+			payload.putInt(field.getKey().length);
+			payload.put(field.getKey());
+			payload.putInt(field.getValue().length);
+			payload.put(field.getValue());
+		}
+		if (versioned) {
+			payload.putInt(VERSION_KEY.length);
+			payload.put(VERSION_KEY);
+			payload.putInt(VERSION_DIGITS);
+		}
+		final int recordLength = RECORD_HEADER_BYTES + payloadLength;
+		lock.writeLock().lock();
+		try {
+			// the version is only known under the lock, so it fills the end of the payload and the checksum is taken last
+			final Entry previous = index.get(sessionId);
+			final long version = versioned ? (previous == null ? 0 : previous.version) + 1 : 0;
+			if (versioned) {
+				payload.put(String.format("%0" + VERSION_DIGITS + "d", version).getBytes(StandardCharsets.US_ASCII));
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(payload.array());
+			ensureCapacity(recordLength + Integer.BYTES);
+			final int offset = writePosition;
+			buffer.putInt(offset, payloadLength);
+			buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+			buffer.put(offset + RECORD_HEADER_BYTES, payload.array());
+			writePosition += recordLength;
+			// terminates replay here, in case stale bytes follow
+			buffer.putInt(writePosition, 0);
+			apply(op, sessionId, offset, recordLength, expiryTime, version);
+			return version;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	protected void apply(final byte op, final String sessionId, final int offset, final int recordLength, final long expiryTime,
+			final long version) {
+		final Entry previous;
+		if (op == OP_PUT) {
+			previous = index.put(sessionId, new Entry(offset, recordLength, expiryTime, version));
+		} else {
+			previous = index.remove(sessionId);
+			garbageBytes += recordLength;
+		}
+		if (previous != null) {
+			garbageBytes += previous.length;
+		}
+	}
+
+	/**
+	 * @return the version stored in a record positioned at its field count, or 0 for records written before versions were
+	 */
+	protected static long toVersion(final ByteBuffer record) {
+		long version = 0;
+		final int fieldCount = record.getInt();
+		for (int i = 0; i < fieldCount; i++) {
+			final byte[] key = new byte[record.getInt()];
+			record.get(key);
+			final int valueLength = record.getInt();
+			if (Arrays.equals(VERSION_KEY, key)) {
+				final byte[] value = new byte[valueLength];
+				record.get(value);
+				version = Long.parseLong(new String(value, StandardCharsets.US_ASCII));
+			} else {
+				record.position(record.position() + valueLength);
+			}
+		}
+		return version;
+	}
+
+	protected void replay() {
+		index.clear();
+		garbageBytes = 0;
+		int offset = 0;
+		boolean valid = true;
+		while (valid && offset + RECORD_HEADER_BYTES <= buffer.capacity()) {
+			final int payloadLength = buffer.getInt(offset);
+			if (payloadLength <= 0 || offset + RECORD_HEADER_BYTES + payloadLength > buffer.capacity()) {
+				valid = false;
+			} else {
+				final byte[] payload = new byte[payloadLength];
+				buffer.get(offset + RECORD_HEADER_BYTES, payload);
+				final CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+					log.warn("replay() discarding torn record at offset:{}", offset);
+					valid = false;
+				} else {
+					final ByteBuffer record = ByteBuffer.wrap(payload);
+					final byte op = record.get();
+					final long expiryTime = record.getLong();
+					final byte[] id = new byte[record.getInt()];
+					record.get(id);
+					apply(op, new String(id, StandardCharsets.UTF_8), offset, RECORD_HEADER_BYTES + payloadLength, expiryTime,
+							op == OP_PUT ? toVersion(record) : 0);
+					offset += RECORD_HEADER_BYTES + payloadLength;
+				}
+			}
+		}
+		writePosition = offset;
+	}
+
+	/**
+	 * Drops expired sessions from the index, and compacts the file once more than half of it is garbage.
+	 */
+	protected void sweep() {
+		try {
+			lock.writeLock().lock();
+			try {
+				dropExpired(System.currentTimeMillis());
+				if (garbageBytes > MIN_COMPACT_BYTES && garbageBytes * 2 > writePosition) {
+					compact();
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (final Exception e) {
+			log.error("sweep() caught exception", e);
+		}
+	}
+
+	protected void dropExpired(final long timeNow) {
+		index.entrySet().removeIf((final Map.Entry<String, Entry> entry) -> {
+			final boolean expired = entry.getValue().expiryTime <= timeNow;
+			if (expired) {
+				garbageBytes += entry.getValue().length;
+			}
+			return expired;
+		});
+	}
+
+	protected void compact() throws IOException {
+		final long startTime = System.currentTimeMillis();
+		final int previousSize = writePosition;
+		final Path compactPath = path.resolveSibling(path.getFileName() + ".compact");
+		final List<Map.Entry<String, Entry>> live = new ArrayList<>(index.entrySet());
+		live.sort(Comparator.comparingInt((final Map.Entry<String, Entry> entry) -> entry.getValue().offset));
+		final long liveBytes = live.stream().mapToLong((final Map.Entry<String, Entry> entry) -> entry.getValue().length).sum();
+		final Map<String, Entry> compactedIndex = new HashMap<>();
+		try (final FileChannel compactChannel = FileChannel.open(compactPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final MappedByteBuffer compactBuffer = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					toCapacity(liveBytes + Integer.BYTES));
+			int compactPosition = 0;
+			for (final Map.Entry<String, Entry> entry : live) {
+				final Entry oldEntry = entry.getValue();
+				compactBuffer.put(compactPosition, buffer, oldEntry.offset, oldEntry.length);
+				compactedIndex.put(entry.getKey(), new Entry(compactPosition, oldEntry.length, oldEntry.expiryTime, oldEntry.version));
+				compactPosition += oldEntry.length;
+			}
+			compactBuffer.putInt(compactPosition, 0);
+			compactBuffer.force();
+		}
+		fileChannel.close();
+		Files.move(compactPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		open(path);
+		index.clear();
+		index.putAll(compactedIndex);
+		writePosition = (int) liveBytes;
+		garbageBytes = 0;
+		log.info("compact() compacted bytes:{} to bytes:{} in {}ms", previousSize, liveBytes, System.currentTimeMillis() - startTime);
+	}
+
+	protected void open(final Path openPath) throws IOException {
+		fileChannel = FileChannel.open(openPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, toCapacity(fileChannel.size()));
+	}
+
+	/**
+	 * Grows the mapping to fit the record. If the file can't grow any further, expired sessions and garbage are compacted away first.
+	 */
+	protected void ensureCapacity(final int recordLength) throws IOException {
+		if ((long) writePosition + recordLength > Integer.MAX_VALUE) {
+			dropExpired(System.currentTimeMillis());
+			if (garbageBytes > 0) {
+				log.warn("ensureCapacity() session store file is full, compacting garbageBytes:{}", garbageBytes);
+				compact();
+			}
+		}
+		final long required = (long) writePosition + recordLength;
+		if (required > buffer.capacity()) {
+			buffer.force();
+			buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, toCapacity(required));
+		}
+	}
+
+	/**
+	 * @return the next power of two that fits, capped at the 2GB a single mapping can hold
+	 */
+	protected static long toCapacity(final long required) {
+		if (required > Integer.MAX_VALUE) {
+			throw new RedisUnavailableException(new IOException("Session store file would exceed 2GB; required bytes:" + required));
+		}
+		long capacity = MIN_CAPACITY;
+		while (capacity < required) {
+			capacity *= 2;
+		}
+		return Math.min(capacity, Integer.MAX_VALUE);
+	}
+
+	protected static class Entry {
+		protected final int offset;
+		protected final int length;
+		protected final long expiryTime;
+		protected final long version;
+
+		protected Entry(final int offset, final int length, final long expiryTime, final long version) {
+			this.offset = offset;
+			this.length = length;
+			this.expiryTime = expiryTime;
+			this.version = version;
+		}
+	}
+}
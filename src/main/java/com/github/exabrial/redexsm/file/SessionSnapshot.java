@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.exabrial.redexsm.model.DeferredAttribute;
+
+/**
+ * Binary snapshot of a node's local session cache, written on shutdown and read back on startup. Sessions are kept in their stored
+ * form (encoded, and encrypted where they would be in Redis), so writing the snapshot costs no more than publishing the sessions, and
+ * attributes that were never loaded are recorded as references only.
+ *
+ * The snapshot is written to a temporary file and moved into place, so a reader never sees a partial snapshot.
+ *
+ * @author jonathan.fisher
+ */
+public class SessionSnapshot {
+	private static final int MAGIC = 0x52445853;
+	private static final int FORMAT_VERSION = 1;
+
+	private SessionSnapshot() {
+	}
+
+	public static void write(final Path path, final List<Entry> entries) throws IOException {
+		final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		try (final FileChannel fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 3);
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(entries.size()).flip();
+			writeFully(fileChannel, header);
+			for (final Entry entry : entries) {
+				writeFully(fileChannel, toBuffer(entry));
+			}
+			fileChannel.force(false);
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the snapshot's entries, or an empty list if there is no snapshot
+	 */
+	public static List<Entry> read(final Path path) throws IOException {
+		final List<Entry> entries = new ArrayList<>();
+		if (Files.exists(path)) {
+			try (final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+				final MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+				if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+					throw new IOException("Not a session snapshot, or an unsupported version: " + path);
+				}
+				final int count = buffer.getInt();
+				for (int i = 0; i < count; i++) {
+					final String sessionId = new String(readBytes(buffer), StandardCharsets.UTF_8);
+					final int fieldCount = buffer.getInt();
+					final Map<byte[], byte[]> encodedMap = new HashMap<>(fieldCount * 2);
+					for (int j = 0; j < fieldCount; j++) {
+						encodedMap.put(readBytes(buffer), readBytes(buffer));
+					}
+					final int deferredCount = buffer.getInt();
+					final List<DeferredAttribute> deferredAttributes = new ArrayList<>(deferredCount);
+					for (int j = 0; j < deferredCount; j++) {
+						deferredAttributes.add(new DeferredAttribute(readBytes(buffer), readBytes(buffer)));
+					}
+					entries.add(new Entry(sessionId, encodedMap, deferredAttributes));
+				}
+			}
+		}
+		return entries;
+	}
+
+	protected static ByteBuffer toBuffer(final Entry entry) {
+		final byte[] id = entry.sessionId.getBytes(StandardCharsets.UTF_8);
+		int length = Integer.BYTES * 3 + id.length;
+		for (final Map.Entry<byte[], byte[]> field : entry.encodedMap.entrySet()) {
+			length += Integer.BYTES * 2 + field.getKey().length + field.getValue().length;
+		}
+		for (final DeferredAttribute deferredAttribute : entry.deferredAttributes) {
+			length += Integer.BYTES * 2 + deferredAttribute.storageKey.length
+					+ (deferredAttribute.chunkReference == null ? 0 : deferredAttribute.chunkReference.length);
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		writeBytes(buffer, id);
+		buffer.putInt(entry.encodedMap.size());
+		for (final Map.Entry<byte[], byte[]> field : entry.encodedMap.entrySet()) {
+			writeBytes(buffer, field.getKey());
+			writeBytes(buffer, field.getValue());
+		}
+		buffer.putInt(entry.deferredAttributes.size());
+		for (final DeferredAttribute deferredAttribute : entry.deferredAttributes) {
+			writeBytes(buffer, deferredAttribute.storageKey);
+			writeBytes(buffer, deferredAttribute.chunkReference);
+		}
+		return buffer.flip();
+	}
+
+	protected static void writeBytes(final ByteBuffer buffer, final byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	protected static byte[] readBytes(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		final byte[] bytes;
+		if (length < 0) {
+			bytes = null;
+		} else {
+			bytes = new byte[length];
+			buffer.get(bytes);
+		}
+		return bytes;
+	}
+
+	protected static void writeFully(final FileChannel fileChannel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			fileChannel.write(buffer);
+		}
+	}
+
+	public static class Entry {
+		public final String sessionId;
+		public final Map<byte[], byte[]> encodedMap;
+		public final List<DeferredAttribute> deferredAttributes;
+
+		public Entry(final String sessionId, final Map<byte[], byte[]> encodedMap, final List<DeferredAttribute> deferredAttributes) {
+			this.sessionId = sessionId;
+			this.encodedMap = encodedMap;
+			this.deferredAttributes = deferredAttributes;
+		}
+	}
+}
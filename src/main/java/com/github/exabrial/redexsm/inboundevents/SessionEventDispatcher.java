@@ -0,0 +1,229 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.inboundevents;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.exabrial.redexsm.SessionRemover;
+
+/**
+ * Decouples receipt of inbound session events from their processing so a slow {@code HttpSessionListener} can't back up the Redis
+ * subscription. Events are partitioned by session ID, so events for one session are always handled in order, and an event for a
+ * session that is already queued is merged into the queued one (a destruction supersedes a backup refresh, which supersedes an
+ * eviction, which supersedes an expiry check).
+ *
+ * @author jonathan.fisher
+ */
+public class SessionEventDispatcher implements SessionRemover, Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SessionEventDispatcher.class);
+
+	/**
+	 * Inbound event types, in increasing order of precedence when merged.
+	 */
+	protected enum EventType {
+		EXPIRE, EVICT, BACKUP, DESTROY
+	}
+
+	private final SessionRemover sessionRemover;
+	private final Partition[] partitions;
+	private final ExecutorService executorService;
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong dedupedCount = new AtomicLong();
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	public SessionEventDispatcher(final SessionRemover sessionRemover, final String name, final int partitionCount,
+			final int queueCapacity, final boolean virtualThreads) {
+		this.sessionRemover = sessionRemover;
+		final int count = Math.max(1, partitionCount);
+		partitions = new Partition[count];
+		for (int i = 0; i < count; i++) {
+			partitions[i] = new Partition(Math.max(1, queueCapacity / count));
+		}
+		ExecutorService virtualExecutor = null;
+		if (virtualThreads) {
+			virtualExecutor = newVirtualThreadExecutor();
+			if (virtualExecutor == null) {
+				log.warn("SessionEventDispatcher() virtual threads requested but not available on this JVM; using platform threads");
+			}
+		}
+		if (virtualExecutor != null) {
+			executorService = virtualExecutor;
+		} else {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			executorService = Executors.newFixedThreadPool(count, (final Runnable runnable) -> {
+				final Thread thread = new Thread(runnable, "redex-events-" + name + "-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	@Override
+	public void evictSession(final String sessionId) {
+		enqueue(sessionId, EventType.EVICT);
+	}
+
+	@Override
+	public void backupSession(final String sessionId) {
+		enqueue(sessionId, EventType.BACKUP);
+	}
+
+	@Override
+	public void expireSession(final String sessionId) {
+		enqueue(sessionId, EventType.EXPIRE);
+	}
+
+	@Override
+	public void destroySession(final String sessionId) {
+		enqueue(sessionId, EventType.DESTROY);
+	}
+
+	@Override
+	public void evictAll() {
+		sessionRemover.evictAll();
+	}
+
+	@Override
+	public void close() {
+		executorService.shutdownNow();
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (final Partition partition : partitions) {
+			depth += partition.queue.size();
+		}
+		return depth;
+	}
+
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	public long getDedupedCount() {
+		return dedupedCount.get();
+	}
+
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	protected void enqueue(final String sessionId, final EventType eventType) {
+		final Partition partition = partitions[Math.floorMod(sessionId.hashCode(), partitions.length)];
+		boolean queued = false;
+		while (!queued) {
+			final EventType pending = partition.pending.putIfAbsent(sessionId, eventType);
+			if (pending == null) {
+				if (partition.queue.offer(sessionId)) {
+					partition.schedule();
+				} else {
+					partition.pending.remove(sessionId);
+					overflow(sessionId, eventType);
+				}
+				queued = true;
+			} else if (pending.compareTo(eventType) >= 0 || partition.pending.replace(sessionId, pending, eventType)) {
+				dedupedCount.incrementAndGet();
+				queued = true;
+			}
+		}
+	}
+
+	protected void overflow(final String sessionId, final EventType eventType) {
+		overflowCount.incrementAndGet();
+		if (eventType == EventType.EXPIRE) {
+			log.debug("overflow() event queue full, dropping expiry check for sessionId:{}", sessionId);
+		} else {
+			log.warn("overflow() event queue full, evicting sessionId:{} inline (eventType:{})", sessionId, eventType);
+			try {
+				sessionRemover.evictSession(sessionId);
+			} catch (final Exception e) {
+				log.error("overflow() caught exception", e);
+			}
+		}
+	}
+
+	protected void dispatch(final String sessionId, final EventType eventType) {
+		try {
+			switch (eventType) {
+				case DESTROY -> {
+					sessionRemover.destroySession(sessionId);
+				}
+				case BACKUP -> {
+					sessionRemover.backupSession(sessionId);
+				}
+				case EVICT -> {
+					sessionRemover.evictSession(sessionId);
+				}
+				default -> {
+					sessionRemover.expireSession(sessionId);
+				}
+			}
+		} catch (final Exception e) {
+			log.error("dispatch() caught exception for sessionId:{}", sessionId, e);
+		}
+		processedCount.incrementAndGet();
+	}
+
+	protected static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	protected class Partition implements Runnable {
+		protected final BlockingQueue<String> queue;
+		protected final ConcurrentMap<String, EventType> pending = new ConcurrentHashMap<>();
+		protected final AtomicBoolean scheduled = new AtomicBoolean();
+
+		protected Partition(final int capacity) {
+			queue = new ArrayBlockingQueue<>(capacity);
+		}
+
+		protected void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				executorService.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				String sessionId;
+				while ((sessionId = queue.poll()) != null) {
+					final EventType eventType = pending.remove(sessionId);
+					if (eventType != null) {
+						dispatch(sessionId, eventType);
+					}
+				}
+				scheduled.set(false);
+			} while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.inboundevents;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.exabrial.redexsm.SessionRemover;
+import com.github.exabrial.redexsm.model.SessionDestructionMessage;
+import com.github.exabrial.redexsm.model.SessionEvictionMessage;
+import com.github.exabrial.redexsm.model.SessionMessage;
+
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Receives session eviction and session destruction events for every session manager sharing a Redis connection, over a single
+ * subscription to the channels of the registered key prefixes, and dispatches them by the key prefix in the channel name. The
+ * subscription follows the registrations as they come and go. If the connection is lost it is re-established with exponential
+ * backoff, and because events may have been missed in the meantime, every registered local cache is resynchronized once the
+ * subscription is back.
+ *
+ * Registrations may also ask for Redis keyspace {@code expired} notifications of their session keys, which trigger an immediate local
+ * expiry check. This requires {@code notify-keyspace-events} to include {@code Ex} on the Redis server.
+ *
+ * @author jonathan.fisher
+ */
+public class SessionEventListener implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SessionEventListener.class);
+	private static final long RECONNECT_MIN_MILLIS = 250;
+	private static final long RECONNECT_MAX_MILLIS = 30000;
+
+	private final UnifiedJedis jedis;
+	private final String evictionChannelPrefix;
+	private final String destructionChannelPrefix;
+	private final byte[] expiredChannel;
+	private final Set<ByteBuffer> channels = new CopyOnWriteArraySet<>();
+	private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+	private final Thread backgroundThread;
+	private volatile BinaryJedisPubSub jedisPubSub;
+	private volatile boolean running = true;
+	private volatile boolean subscribedBefore;
+	private long reconnectMillis = RECONNECT_MIN_MILLIS;
+
+	public SessionEventListener(final UnifiedJedis jedis, final String evictionChannelPrefix, final String destructionChannelPrefix,
+			final String expiredChannelName, final String threadName) {
+		this.jedis = jedis;
+		this.evictionChannelPrefix = evictionChannelPrefix;
+		this.destructionChannelPrefix = destructionChannelPrefix;
+		expiredChannel = expiredChannelName.getBytes(StandardCharsets.UTF_8);
+		backgroundThread = new Thread(this::subscribeLoop, threadName);
+		backgroundThread.setDaemon(true);
+		backgroundThread.start();
+	}
+
+	/**
+	 * @param keyPrefix the key prefix of the registering session manager; events on its channels are dispatched to sessionRemover
+	 * @param nodeId events published by this node are ignored
+	 * @param sessionKeyPrefix Redis key prefix of the manager's sessions, used to match expiry notifications
+	 * @param expiryNotifications whether to also dispatch keyspace expiry notifications for the manager's sessions
+	 * @param backupRoute writes naming this route as the session's backup are dispatched as backup refreshes; may be null
+	 */
+	public Registration register(final String keyPrefix, final SessionRemover sessionRemover, final String nodeId,
+			final byte[] sessionKeyPrefix, final boolean expiryNotifications, final String backupRoute) {
+		final Registration registration = new Registration(keyPrefix, sessionRemover, nodeId, sessionKeyPrefix, expiryNotifications,
+				backupRoute);
+		registrations.add(registration);
+		updateChannels();
+		return registration;
+	}
+
+	public void unregister(final Registration registration) {
+		registrations.remove(registration);
+		updateChannels();
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		final BinaryJedisPubSub currentPubSub = jedisPubSub;
+		if (currentPubSub != null && currentPubSub.isSubscribed()) {
+			currentPubSub.unsubscribe();
+		}
+		backgroundThread.interrupt();
+	}
+
+	/**
+	 * Subscribes to the channels of newly registered key prefixes and unsubscribes from those no registration uses anymore. The last
+	 * channels stay subscribed until the listener is closed, because unsubscribing from every channel ends the subscription.
+	 */
+	protected synchronized void updateChannels() {
+		final Set<ByteBuffer> wanted = new HashSet<>();
+		for (final Registration registration : registrations) {
+			wanted.add(ByteBuffer.wrap((evictionChannelPrefix + registration.keyPrefix).getBytes(StandardCharsets.UTF_8)));
+			wanted.add(ByteBuffer.wrap((destructionChannelPrefix + registration.keyPrefix).getBytes(StandardCharsets.UTF_8)));
+			if (registration.expiryNotifications) {
+				wanted.add(ByteBuffer.wrap(expiredChannel));
+			}
+		}
+		final byte[][] added = wanted.stream().filter((final ByteBuffer channel) -> !channels.contains(channel)).map(ByteBuffer::array)
+				.toArray(byte[][]::new);
+		final byte[][] removed = channels.stream().filter((final ByteBuffer channel) -> !wanted.contains(channel)).map(ByteBuffer::array)
+				.toArray(byte[][]::new);
+		channels.addAll(wanted);
+		channels.retainAll(wanted);
+		final BinaryJedisPubSub currentPubSub = jedisPubSub;
+		if (currentPubSub != null && currentPubSub.isSubscribed()) {
+			try {
+				if (added.length > 0) {
+					currentPubSub.subscribe(added);
+				}
+				if (removed.length > 0 && !wanted.isEmpty()) {
+					currentPubSub.unsubscribe(removed);
+				}
+			} catch (final Exception e) {
+				// the subscribe loop subscribes to the current channels when it reconnects
+				log.debug("updateChannels() subscription is not active, channels are subscribed on reconnect", e);
+			}
+		}
+		notifyAll();
+	}
+
+	protected void subscribeLoop() {
+		while (running) {
+			final byte[][] subscribing = awaitChannels();
+			if (subscribing.length > 0) {
+				final BinaryJedisPubSub currentPubSub = newPubSub(subscribing);
+				jedisPubSub = currentPubSub;
+				boolean lost = false;
+				try {
+					jedis.subscribe(currentPubSub, subscribing);
+				} catch (final Exception e) {
+					lost = true;
+					if (running) {
+						log.warn("subscribeLoop() subscriber connection lost, reconnecting in {}ms", reconnectMillis, e);
+					}
+				}
+				if (running && lost) {
+					try {
+						Thread.sleep(reconnectMillis);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						running = false;
+					}
+					reconnectMillis = Math.min(reconnectMillis * 2, RECONNECT_MAX_MILLIS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until there is at least one channel to subscribe to, as the last unsubscribe ends a subscription.
+	 */
+	protected synchronized byte[][] awaitChannels() {
+		while (running && channels.isEmpty()) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+		}
+		return channels.stream().map(ByteBuffer::array).toArray(byte[][]::new);
+	}
+
+	protected BinaryJedisPubSub newPubSub(final byte[][] subscribing) {
+		final Set<ByteBuffer> subscribed = ConcurrentHashMap.newKeySet();
+		return new BinaryJedisPubSub() {
+			private boolean established;
+
+			@Override
+			public void onSubscribe(final byte[] channel, final int subscribedChannels) {
+				subscribed.add(ByteBuffer.wrap(channel));
+				if (!established && subscribedChannels == subscribing.length) {
+					established = true;
+					reconnectMillis = RECONNECT_MIN_MILLIS;
+					if (subscribedBefore) {
+						log.warn("onSubscribe() subscriber reconnected; events may have been missed, resynchronizing local caches");
+						for (final Registration registration : registrations) {
+							registration.sessionRemover.evictAll();
+						}
+					}
+					subscribedBefore = true;
+					// channels registered while this subscription was being set up
+					final byte[][] missing = channels.stream().filter((final ByteBuffer wanted) -> !subscribed.contains(wanted))
+							.map(ByteBuffer::array).toArray(byte[][]::new);
+					if (missing.length > 0) {
+						subscribe(missing);
+					}
+				}
+			}
+
+			@Override
+			public void onUnsubscribe(final byte[] channel, final int subscribedChannels) {
+				subscribed.remove(ByteBuffer.wrap(channel));
+			}
+
+			@Override
+			public void onMessage(final byte[] channel, final byte[] message) {
+				dispatch(channel, message);
+			}
+		};
+	}
+
+	protected void dispatch(final byte[] channel, final byte[] message) {
+		final String channelName = new String(channel, StandardCharsets.UTF_8);
+		if (channelName.startsWith(evictionChannelPrefix)) {
+			final String keyPrefix = channelName.substring(evictionChannelPrefix.length());
+			final SessionEvictionMessage evictionMessage = new SessionEvictionMessage(message);
+			for (final Registration registration : registrations) {
+				if (registration.keyPrefix.equals(keyPrefix) && !registration.nodeId.equals(evictionMessage.sourceNodeId)) {
+					if (registration.backupRoute != null && registration.backupRoute.equals(evictionMessage.backupRoute)) {
+						registration.sessionRemover.backupSession(evictionMessage.sessionId);
+					} else {
+						registration.sessionRemover.evictSession(evictionMessage.sessionId);
+					}
+				}
+			}
+		} else if (channelName.startsWith(destructionChannelPrefix)) {
+			final String keyPrefix = channelName.substring(destructionChannelPrefix.length());
+			final SessionMessage destructionMessage = new SessionDestructionMessage(message);
+			for (final Registration registration : registrations) {
+				if (registration.keyPrefix.equals(keyPrefix) && !registration.nodeId.equals(destructionMessage.sourceNodeId)) {
+					registration.sessionRemover.destroySession(destructionMessage.sessionId);
+				}
+			}
+		} else if (Arrays.equals(expiredChannel, channel)) {
+			for (final Registration registration : registrations) {
+				final byte[] sessionKeyPrefix = registration.sessionKeyPrefix;
+				if (registration.expiryNotifications && message.length > sessionKeyPrefix.length
+						&& Arrays.equals(sessionKeyPrefix, 0, sessionKeyPrefix.length, message, 0, sessionKeyPrefix.length)) {
+					registration.sessionRemover.expireSession(new String(message, sessionKeyPrefix.length,
+							message.length - sessionKeyPrefix.length, StandardCharsets.UTF_8));
+				}
+			}
+		}
+	}
+
+	public static class Registration {
+		protected final String keyPrefix;
+		protected final SessionRemover sessionRemover;
+		protected final String nodeId;
+		protected final byte[] sessionKeyPrefix;
+		protected final boolean expiryNotifications;
+		protected final String backupRoute;
+
+		protected Registration(final String keyPrefix, final SessionRemover sessionRemover, final String nodeId,
+				final byte[] sessionKeyPrefix, final boolean expiryNotifications, final String backupRoute) {
+			this.keyPrefix = keyPrefix;
+			this.sessionRemover = sessionRemover;
+			this.nodeId = nodeId;
+			this.sessionKeyPrefix = sessionKeyPrefix;
+			this.expiryNotifications = expiryNotifications;
+			this.backupRoute = backupRoute;
+		}
+	}
+}
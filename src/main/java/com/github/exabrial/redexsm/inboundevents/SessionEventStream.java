@@ -0,0 +1,260 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.inboundevents;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.exabrial.redexsm.SessionRemover;
+
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.XReadParams;
+import redis.clients.jedis.resps.StreamEntry;
+
+/**
+ * Receives session eviction and destruction events from capped, per key prefix Redis streams instead of pub/sub. One thread reads the
+ * streams of every registered session manager sharing a Redis connection with a blocking {@code XREAD}, a batch at a time, starting
+ * after the last entry each registration has seen. When the connection is lost it resumes from that entry once it is back, so no event
+ * is missed unless the stream was trimmed past it in the meantime; only then is the registration's local cache resynchronized.
+ *
+ * @author jonathan.fisher
+ */
+public class SessionEventStream implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SessionEventStream.class);
+	private static final long RECONNECT_MIN_MILLIS = 250;
+	private static final long RECONNECT_MAX_MILLIS = 30000;
+	public static final String TYPE = "type";
+	public static final String TYPE_EVICT = "evict";
+	public static final String TYPE_DESTROY = "destroy";
+	public static final String NODE = "node";
+	public static final String SESSION = "session";
+	public static final String BACKUP = "backup";
+
+	private final UnifiedJedis jedis;
+	private final int blockMillis;
+	private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+	private final Thread backgroundThread;
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong entryCount = new AtomicLong();
+	private volatile boolean running = true;
+	private long reconnectMillis = RECONNECT_MIN_MILLIS;
+
+	/**
+	 * @param blockMillis how long each {@code XREAD} blocks waiting for entries; must be shorter than the connection's socket timeout
+	 */
+	public SessionEventStream(final UnifiedJedis jedis, final int blockMillis, final String threadName) {
+		this.jedis = jedis;
+		this.blockMillis = blockMillis;
+		backgroundThread = new Thread(this::readLoop, threadName);
+		backgroundThread.setDaemon(true);
+		backgroundThread.start();
+	}
+
+	/**
+	 * Reading starts after the newest entry currently in the stream: a manager that is just starting has nothing cached yet. If the stream
+	 * can't be read, it is read from the start; replaying old events only evicts sessions that aren't cached.
+	 *
+	 * @param streamKey the stream the registering session manager's events are added to
+	 * @param nodeId events added by this node are ignored
+	 * @param batchSize the most entries read per stream in one round trip
+	 * @param backupRoute writes naming this route as the session's backup are dispatched as backup refreshes; may be null
+	 */
+	public Registration register(final String streamKey, final SessionRemover sessionRemover, final String nodeId, final int batchSize,
+			final String backupRoute) {
+		StreamEntryID lastId = new StreamEntryID();
+		try {
+			final List<StreamEntry> newest = jedis.xrevrange(streamKey, "+", "-", 1);
+			if (!newest.isEmpty()) {
+				lastId = newest.get(0).getID();
+			}
+		} catch (final JedisException e) {
+			log.warn("register() could not read stream:{}, reading it from the start", streamKey, e);
+		}
+		final Registration registration = new Registration(streamKey, sessionRemover, nodeId, batchSize, backupRoute, lastId);
+		registrations.add(registration);
+		return registration;
+	}
+
+	public void unregister(final Registration registration) {
+		registrations.remove(registration);
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		backgroundThread.interrupt();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getEntryCount() {
+		return entryCount.get();
+	}
+
+	protected void readLoop() {
+		boolean reconnecting = false;
+		while (running) {
+			try {
+				if (reconnecting) {
+					resynchronizeTrimmed();
+					reconnecting = false;
+					reconnectMillis = RECONNECT_MIN_MILLIS;
+				}
+				if (registrations.isEmpty()) {
+					Thread.sleep(blockMillis);
+				} else {
+					read();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			} catch (final Exception e) {
+				if (running) {
+					log.warn("readLoop() stream connection lost, resuming in {}ms", reconnectMillis, e);
+					try {
+						Thread.sleep(reconnectMillis);
+					} catch (final InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						running = false;
+					}
+					reconnectMillis = Math.min(reconnectMillis * 2, RECONNECT_MAX_MILLIS);
+					reconnecting = true;
+				}
+			}
+		}
+	}
+
+	protected void read() {
+		final Map<String, StreamEntryID> streams = new HashMap<>();
+		int batchSize = 1;
+		for (final Registration registration : registrations) {
+			streams.merge(registration.streamKey, registration.lastId,
+					(final StreamEntryID current, final StreamEntryID other) -> current.compareTo(other) <= 0 ? current : other);
+			batchSize = Math.max(batchSize, registration.batchSize);
+		}
+		final List<Map.Entry<String, List<StreamEntry>>> reply = jedis.xread(XReadParams.xReadParams().count(batchSize).block(blockMillis),
+				streams);
+		if (reply != null) {
+			for (final Map.Entry<String, List<StreamEntry>> stream : reply) {
+				if (!stream.getValue().isEmpty()) {
+					batchCount.incrementAndGet();
+					entryCount.addAndGet(stream.getValue().size());
+					for (final Registration registration : registrations) {
+						if (registration.streamKey.equals(stream.getKey())) {
+							dispatch(registration, stream.getValue());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles a batch of entries, skipping the ones already seen and the node's own. Each session is handled once per batch, a
+	 * destruction superseding a backup refresh, which supersedes an eviction.
+	 */
+	protected void dispatch(final Registration registration, final List<StreamEntry> entries) {
+		final Map<String, String> events = new LinkedHashMap<>();
+		StreamEntryID lastId = registration.lastId;
+		for (final StreamEntry entry : entries) {
+			if (entry.getID().compareTo(lastId) > 0) {
+				lastId = entry.getID();
+				final Map<String, String> fields = entry.getFields();
+				final String sessionId = fields.get(SESSION);
+				if (sessionId != null && !registration.nodeId.equals(fields.get(NODE))) {
+					String type = fields.get(TYPE);
+					if (TYPE_EVICT.equals(type) && registration.backupRoute != null && registration.backupRoute.equals(fields.get(BACKUP))) {
+						type = BACKUP;
+					}
+					events.merge(sessionId, type, (final String current, final String other) -> toPrecedence(other) > toPrecedence(current)
+							? other : current);
+				}
+			}
+		}
+		for (final Map.Entry<String, String> event : events.entrySet()) {
+			try {
+				if (TYPE_DESTROY.equals(event.getValue())) {
+					registration.sessionRemover.destroySession(event.getKey());
+				} else if (BACKUP.equals(event.getValue())) {
+					registration.sessionRemover.backupSession(event.getKey());
+				} else {
+					registration.sessionRemover.evictSession(event.getKey());
+				}
+			} catch (final Exception e) {
+				log.error("dispatch() caught exception for sessionId:{}", event.getKey(), e);
+			}
+		}
+		registration.lastId = lastId;
+	}
+
+	protected static int toPrecedence(final String type) {
+		final int precedence;
+		if (TYPE_DESTROY.equals(type)) {
+			precedence = 2;
+		} else if (BACKUP.equals(type)) {
+			precedence = 1;
+		} else {
+			precedence = 0;
+		}
+		return precedence;
+	}
+
+	/**
+	 * Entries after a registration's last seen entry may have been trimmed while disconnected if the stream's oldest entry is newer than
+	 * that. The stream is trimmed approximately, so its length says nothing about it. Those registrations evict their local caches and
+	 * continue from the oldest entry still in the stream.
+	 */
+	protected void resynchronizeTrimmed() {
+		for (final Registration registration : registrations) {
+			final List<StreamEntry> oldest = jedis.xrange(registration.streamKey, "-", "+", 1);
+			if (!oldest.isEmpty() && oldest.get(0).getID().compareTo(registration.lastId) > 0) {
+				log.warn("resynchronizeTrimmed() events in stream:{} may have been trimmed while disconnected, resynchronizing local cache",
+						registration.streamKey);
+				registration.sessionRemover.evictAll();
+			}
+		}
+	}
+
+	public static class Registration {
+		protected final String streamKey;
+		protected final SessionRemover sessionRemover;
+		protected final String nodeId;
+		protected final int batchSize;
+		protected final String backupRoute;
+		protected volatile StreamEntryID lastId;
+
+		protected Registration(final String streamKey, final SessionRemover sessionRemover, final String nodeId, final int batchSize,
+				final String backupRoute, final StreamEntryID lastId) {
+			this.streamKey = streamKey;
+			this.sessionRemover = sessionRemover;
+			this.nodeId = nodeId;
+			this.batchSize = batchSize;
+			this.backupRoute = backupRoute;
+			this.lastId = lastId;
+		}
+	}
+}
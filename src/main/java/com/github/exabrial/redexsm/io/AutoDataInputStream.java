@@ -19,6 +19,8 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.github.exabrial.redexsm.model.SessionMetadata;
+
 public class AutoDataInputStream extends DataInputStream {
 	public AutoDataInputStream(final InputStream in) {
 		super(in);
@@ -53,6 +55,9 @@ public class AutoDataInputStream extends DataInputStream {
 			case 'T' -> {
 				yield readUTF();
 			}
+			case 'M' -> {
+				yield SessionMetadata.readFrom(this);
+			}
 			default -> {
 				throw new RuntimeException("Unknown type:" + type);
 			}
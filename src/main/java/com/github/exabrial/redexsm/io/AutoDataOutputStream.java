@@ -18,6 +18,8 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import com.github.exabrial.redexsm.model.SessionMetadata;
+
 public class AutoDataOutputStream extends DataOutputStream {
 	public AutoDataOutputStream(final OutputStream out) {
 		super(out);
@@ -62,6 +64,10 @@ public class AutoDataOutputStream extends DataOutputStream {
 				super.writeUTF((String) value);
 				yield 'T';
 			}
+			case "com.github.exabrial.redexsm.model.SessionMetadata" -> {
+				((SessionMetadata) value).writeTo(this);
+				yield 'M';
+			}
 			default -> {
 				throw new IllegalArgumentException("Unexpected value-> " + name);
 			}
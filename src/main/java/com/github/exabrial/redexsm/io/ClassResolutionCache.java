@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.io;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the classes and proxy classes resolved while deserializing session attributes, so loading a session doesn't look up every
+ * class descriptor of every attribute again. The cache belongs to one class loader: when it is asked to resolve with another one, for
+ * instance after the web application was reloaded, it starts over, so it never holds on to the classes of an old class loader for
+ * longer than the next load.
+ *
+ * @author jonathan.fisher
+ */
+public class ClassResolutionCache {
+	private volatile Resolved resolved = new Resolved(null);
+
+	/**
+	 * @return the class, or null if classLoader can't load it
+	 */
+	public Class<?> resolveClass(final String name, final ClassLoader classLoader) {
+		final Resolved current = toResolved(classLoader);
+		Class<?> resolvedClass = current.classes.get(name);
+		if (resolvedClass == null) {
+			try {
+				resolvedClass = Class.forName(name, false, classLoader);
+				current.classes.put(name, resolvedClass);
+			} catch (final ClassNotFoundException e) {
+				resolvedClass = null;
+			}
+		}
+		return resolvedClass;
+	}
+
+	@SuppressWarnings("deprecation")
+	public Class<?> resolveProxyClass(final String[] interfaces, final ClassLoader classLoader) throws ClassNotFoundException {
+		final Resolved current = toResolved(classLoader);
+		final String key = String.join(",", interfaces);
+		Class<?> proxyClass = current.proxyClasses.get(key);
+		if (proxyClass == null) {
+			final Class<?>[] loadedClasses = new Class<?>[interfaces.length];
+			for (int i = 0; i < interfaces.length; i++) {
+				loadedClasses[i] = resolveClass(interfaces[i], classLoader);
+				if (loadedClasses[i] == null) {
+					throw new ClassNotFoundException(interfaces[i]);
+				}
+			}
+			proxyClass = Proxy.getProxyClass(classLoader, loadedClasses);
+			current.proxyClasses.put(key, proxyClass);
+		}
+		return proxyClass;
+	}
+
+	public int size() {
+		final Resolved current = resolved;
+		return current.classes.size() + current.proxyClasses.size();
+	}
+
+	public void clear() {
+		resolved = new Resolved(null);
+	}
+
+	protected Resolved toResolved(final ClassLoader classLoader) {
+		Resolved current = resolved;
+		if (current.classLoader != classLoader) {
+			current = new Resolved(classLoader);
+			resolved = current;
+		}
+		return current;
+	}
+
+	protected static class Resolved {
+		protected final ClassLoader classLoader;
+		protected final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+		protected final ConcurrentMap<String, Class<?>> proxyClasses = new ConcurrentHashMap<>();
+
+		protected Resolved(final ClassLoader classLoader) {
+			this.classLoader = classLoader;
+		}
+	}
+}
@@ -17,6 +17,7 @@ package com.github.exabrial.redexsm.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
 import java.lang.reflect.Proxy;
@@ -25,30 +26,57 @@ import java.util.List;
 
 public class ClassloaderAwareObjectInputStream extends ObjectInputStream {
 	private final ClassLoader classLoader;
+	private final ClassResolutionCache classResolutionCache;
 
 	public ClassloaderAwareObjectInputStream(final ClassLoader classLoader, final InputStream in) throws IOException {
+		this(classLoader, in, null, null);
+	}
+
+	/**
+	 * @param classResolutionCache classes resolved before, may be null
+	 * @param objectInputFilter checked in addition to the JVM wide filter, if any; may be null
+	 */
+	public ClassloaderAwareObjectInputStream(final ClassLoader classLoader, final InputStream in,
+			final ClassResolutionCache classResolutionCache, final ObjectInputFilter objectInputFilter) throws IOException {
 		super(in);
 		this.classLoader = classLoader;
+		this.classResolutionCache = classResolutionCache;
+		if (objectInputFilter != null) {
+			final ObjectInputFilter jvmFilter = getObjectInputFilter();
+			setObjectInputFilter(jvmFilter == null ? objectInputFilter : ObjectInputFilter.merge(objectInputFilter, jvmFilter));
+		}
 	}
 
 	@Override
 	protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
-		try {
-			final String name = desc.getName();
-			return Class.forName(name, false, classLoader);
-		} catch (final ClassNotFoundException e) {
-			return super.resolveClass(desc);
+		final String name = desc.getName();
+		Class<?> resolvedClass;
+		if (classResolutionCache != null) {
+			resolvedClass = classResolutionCache.resolveClass(name, classLoader);
+		} else {
+			try {
+				resolvedClass = Class.forName(name, false, classLoader);
+			} catch (final ClassNotFoundException e) {
+				resolvedClass = null;
+			}
 		}
+		return resolvedClass == null ? super.resolveClass(desc) : resolvedClass;
 	}
 
 	@SuppressWarnings("deprecation")
 	@Override
 	protected Class<?> resolveProxyClass(final String[] interfaces) throws IOException, ClassNotFoundException {
-		final List<Class<?>> loadedClasses = new ArrayList<>(interfaces.length);
-		for (final String name : interfaces) {
-			final Class<?> clazz = Class.forName(name, false, classLoader);
-			loadedClasses.add(clazz);
+		final Class<?> proxyClass;
+		if (classResolutionCache != null) {
+			proxyClass = classResolutionCache.resolveProxyClass(interfaces, classLoader);
+		} else {
+			final List<Class<?>> loadedClasses = new ArrayList<>(interfaces.length);
+			for (final String name : interfaces) {
+				final Class<?> clazz = Class.forName(name, false, classLoader);
+				loadedClasses.add(clazz);
+			}
+			proxyClass = Proxy.getProxyClass(classLoader, loadedClasses.toArray(new Class[0]));
 		}
-		return Proxy.getProxyClass(classLoader, loadedClasses.toArray(new Class[0]));
+		return proxyClass;
 	}
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.jedis;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Grows and shrinks the idle and total bounds of a connection pool from observed demand, within operator set limits. Demand is the
+ * larger of the connections in use (plus threads waiting for one) at the time of the check and the average concurrency since the last
+ * check, estimated from the borrow rate and the mean time a connection is held.
+ *
+ * Growing happens as soon as borrowers wait longer than the target, or connections are created and destroyed in the same interval
+ * (churn, usually caused by a max idle bound that is too small). Shrinking only happens after demand stayed well below the idle bound
+ * for several consecutive intervals, one connection at a time, so a bursty load doesn't make the pool oscillate.
+ *
+ * @author jonathan.fisher
+ */
+public class AdaptivePoolSizer {
+	private static final Logger log = LoggerFactory.getLogger(AdaptivePoolSizer.class);
+	private static final long ADJUST_INTERVAL_MILLIS = 10000;
+	private static final int SHRINK_AFTER_INTERVALS = 6;
+
+	private final GenericObjectPool<?> pool;
+	private final int floorMinIdle;
+	private final int floorMaxIdle;
+	private final int floorMaxTotal;
+	private final int limitMaxTotal;
+	private final long targetWaitMillis;
+	private long lastAdjustTime;
+	private long lastBorrowedCount;
+	private long lastCreatedCount;
+	private long lastDestroyedCount;
+	private int quietIntervals;
+	private volatile long growCount;
+	private volatile long shrinkCount;
+	private volatile int lastDemand;
+	private volatile String lastDecision = "none";
+
+	/**
+	 * @param floorMinIdle the configured minIdle; never shrunk below
+	 * @param floorMaxIdle the configured maxIdle; never shrunk below
+	 * @param floorMaxTotal the configured maxTotal; never shrunk below
+	 * @param limitMaxTotal maxTotal is never grown above this
+	 * @param targetWaitMillis mean borrow wait above which the pool grows
+	 */
+	public AdaptivePoolSizer(final GenericObjectPool<?> pool, final int floorMinIdle, final int floorMaxIdle, final int floorMaxTotal,
+			final int limitMaxTotal, final long targetWaitMillis) {
+		this.pool = pool;
+		this.floorMinIdle = floorMinIdle;
+		this.floorMaxIdle = floorMaxIdle;
+		this.floorMaxTotal = floorMaxTotal;
+		this.limitMaxTotal = Math.max(floorMaxTotal, limitMaxTotal);
+		this.targetWaitMillis = targetWaitMillis;
+		lastAdjustTime = System.currentTimeMillis();
+		lastBorrowedCount = pool.getBorrowedCount();
+		lastCreatedCount = pool.getCreatedCount();
+		lastDestroyedCount = pool.getDestroyedCount();
+	}
+
+	/**
+	 * Re-evaluates the pool bounds if at least one adjust interval passed since the last evaluation; otherwise does nothing. Safe to
+	 * call from every session manager sharing the pool.
+	 */
+	public synchronized void adjust() {
+		final long timeNow = System.currentTimeMillis();
+		final long elapsedMillis = timeNow - lastAdjustTime;
+		if (elapsedMillis >= ADJUST_INTERVAL_MILLIS) {
+			final long borrowedCount = pool.getBorrowedCount();
+			final long createdCount = pool.getCreatedCount();
+			final long destroyedCount = pool.getDestroyedCount();
+			final double borrowsPerMilli = (double) (borrowedCount - lastBorrowedCount) / elapsedMillis;
+			final int averageDemand = (int) Math.ceil(borrowsPerMilli * pool.getMeanActiveDuration().toMillis());
+			final int waiters = pool.getNumWaiters();
+			final int demand = Math.max(pool.getNumActive() + waiters, averageDemand);
+			final boolean churn = createdCount > lastCreatedCount && destroyedCount > lastDestroyedCount;
+			final boolean waiting = waiters > 0 || pool.getMeanBorrowWaitDuration().toMillis() > targetWaitMillis;
+			final int maxTotal = pool.getMaxTotal();
+			final int maxIdle = pool.getMaxIdle();
+			final int minIdle = pool.getMinIdle();
+			if (waiting || churn) {
+				quietIntervals = 0;
+				int newMaxTotal = maxTotal;
+				if (waiting && demand >= maxTotal) {
+					newMaxTotal = Math.min(limitMaxTotal, Math.max(maxTotal + 1, maxTotal + maxTotal / 2));
+				}
+				final int newMaxIdle = Math.min(newMaxTotal, Math.max(maxIdle + 1, demand + 1));
+				final int newMinIdle = Math.min(newMaxIdle, Math.max(minIdle, demand / 2));
+				apply("grow", demand, newMaxTotal, newMaxIdle, newMinIdle);
+			} else if (demand * 2 < maxIdle || maxTotal > Math.max(floorMaxTotal, demand * 2)) {
+				quietIntervals++;
+				if (quietIntervals >= SHRINK_AFTER_INTERVALS) {
+					quietIntervals = 0;
+					final int newMaxTotal = Math.max(floorMaxTotal, Math.max(demand * 2, maxTotal - 1));
+					final int newMaxIdle = Math.min(newMaxTotal, Math.max(floorMaxIdle, maxIdle - 1));
+					final int newMinIdle = Math.min(newMaxIdle, Math.max(floorMinIdle, Math.min(minIdle, demand)));
+					apply("shrink", demand, newMaxTotal, newMaxIdle, newMinIdle);
+				}
+			} else {
+				quietIntervals = 0;
+			}
+			lastDemand = demand;
+			lastAdjustTime = timeNow;
+			lastBorrowedCount = borrowedCount;
+			lastCreatedCount = createdCount;
+			lastDestroyedCount = destroyedCount;
+		}
+	}
+
+	protected void apply(final String direction, final int demand, final int newMaxTotal, final int newMaxIdle, final int newMinIdle) {
+		final int maxTotal = pool.getMaxTotal();
+		final int maxIdle = pool.getMaxIdle();
+		final int minIdle = pool.getMinIdle();
+		if (newMaxTotal != maxTotal || newMaxIdle != maxIdle || newMinIdle != minIdle) {
+			// raise the upper bounds before the lower ones, and lower them after, so minIdle <= maxIdle <= maxTotal always holds
+			if (newMaxTotal > maxTotal) {
+				pool.setMaxTotal(newMaxTotal);
+			}
+			pool.setMaxIdle(newMaxIdle);
+			pool.setMinIdle(newMinIdle);
+			if (newMaxTotal < maxTotal) {
+				pool.setMaxTotal(newMaxTotal);
+			}
+			lastDecision = direction + " demand:" + demand + " maxTotal:" + maxTotal + "->" + newMaxTotal + " maxIdle:" + maxIdle + "->"
+					+ newMaxIdle + " minIdle:" + minIdle + "->" + newMinIdle;
+			if ("grow".equals(direction)) {
+				growCount++;
+			} else {
+				shrinkCount++;
+			}
+			log.info("apply() {}", lastDecision);
+		}
+	}
+
+	public long getGrowCount() {
+		return growCount;
+	}
+
+	public long getShrinkCount() {
+		return shrinkCount;
+	}
+
+	public int getLastDemand() {
+		return lastDemand;
+	}
+
+	public String getLastDecision() {
+		return lastDecision;
+	}
+
+	public int getMaxTotal() {
+		return pool.getMaxTotal();
+	}
+
+	public int getMaxIdle() {
+		return pool.getMaxIdle();
+	}
+
+	public int getMinIdle() {
+		return pool.getMinIdle();
+	}
+}
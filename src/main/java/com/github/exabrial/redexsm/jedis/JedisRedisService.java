@@ -14,63 +14,217 @@
  */
 package com.github.exabrial.redexsm.jedis;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.catalina.Context;
-import org.apache.commons.lang3.ClassUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.github.exabrial.redexsm.ImprovedRedisSession;
 import com.github.exabrial.redexsm.RedisService;
+import com.github.exabrial.redexsm.RedisUnavailableException;
+import com.github.exabrial.redexsm.RequestTimings;
 import com.github.exabrial.redexsm.SessionRemover;
-import com.github.exabrial.redexsm.encryption.EncryptionSupport;
-import com.github.exabrial.redexsm.inboundevents.SessionDestructionListener;
-import com.github.exabrial.redexsm.inboundevents.SessionEvicitionListener;
-import com.github.exabrial.redexsm.io.AutoDataInputStream;
-import com.github.exabrial.redexsm.io.AutoDataOutputStream;
-import com.github.exabrial.redexsm.io.ClassloaderAwareObjectInputStream;
+import com.github.exabrial.redexsm.codec.CodecPool;
+import com.github.exabrial.redexsm.codec.EncodedAttribute;
+import com.github.exabrial.redexsm.codec.SessionCodec;
+import com.github.exabrial.redexsm.codec.SharedAttributeCache;
+import com.github.exabrial.redexsm.inboundevents.SessionEventListener;
+import com.github.exabrial.redexsm.inboundevents.SessionEventStream;
+import com.github.exabrial.redexsm.model.DeferredAttribute;
 import com.github.exabrial.redexsm.model.SessionChangeset;
 import com.github.exabrial.redexsm.model.SessionDestructionMessage;
 import com.github.exabrial.redexsm.model.SessionEvictionMessage;
+import com.github.exabrial.redexsm.model.SessionLease;
 
 import redis.clients.jedis.ConnectionPoolConfig;
 import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
-import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisBusyException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.params.XAddParams;
 
 public class JedisRedisService implements Closeable, RedisService {
 	public static final String REDEX_SESSION_DESTRUCTION = "redex:sessionDestruction:";
 	public static final String REDEX_SESSION_EVICTION = "redex:sessionEviction:";
-	protected static final List<String> plaintextAttributes = List.of(SessionChangeset.REDEX_NODE_ID, SessionChangeset.REDEX_SESSION_ID,
-			SessionChangeset.REDEX_UID, ImprovedRedisSession.REDEX_AUTHTYPE_ATTR, ImprovedRedisSession.REDEX_CREATION_TIME_ATTR,
-			ImprovedRedisSession.REDEX_IS_NEW_ATTR, ImprovedRedisSession.REDEX_IS_VALID_ATTR,
-			ImprovedRedisSession.REDEX_LAST_ACCESSED_TIME_ATTR, ImprovedRedisSession.REDEX_MAX_INACTIVE_INTERVAL_ATTR,
-			ImprovedRedisSession.REDEX_THIS_ACCESSED_TIME_ATTR);
+	public static final String REDEX_SESSION_EVENTS = "redex:sessionEvents:";
+	public static final String REDEX_NODES = "redex:nodes:";
+	public static final String REDEX_RECENT_SESSIONS = "redex:recentSessions:";
+	public static final String REDEX_CHUNK = "redex:chunk:";
+	public static final String REDEX_LOCK = "redex:lock:";
+	public static final String REDEX_LOCK_TOKEN = "redex:lockToken:";
+	private static final Logger log = LoggerFactory.getLogger(JedisRedisService.class);
+	/**
+	 * Returns every field name of the session hash, each followed by its value if it is a redex field or a requested hot attribute, or
+	 * nil otherwise.
+	 */
+	protected static final RedisScript LOAD_PARTIAL_SCRIPT = new RedisScript("""
+			local wanted = {}
+			for i = 1, #ARGV do wanted[ARGV[i]] = true end
+			local result = {}
+			for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do
+				local name = string.sub(field, 7)
+				result[#result + 1] = field
+				if wanted[name] or string.sub(name, 1, 6) == 'redex:' or string.sub(field, 5, 5) == 'r' or field == 'redex:version' then
+					result[#result + 1] = redis.call('HGET', KEYS[1], field)
+				else
+					result[#result + 1] = false
+				end
+			end
+			return result
+			""");
+	/**
+	 * Extends the expiry of every chunk key to at least ARGV[1] seconds. Returns 1 if all of the chunks exist, 0 otherwise.
+	 */
+	protected static final RedisScript TOUCH_CHUNKS_SCRIPT = new RedisScript("""
+			local ttl = tonumber(ARGV[1])
+			local present = 1
+			for i = 1, #KEYS do
+				local current = redis.call('TTL', KEYS[i])
+				if current == -2 then
+					present = 0
+				elseif current >= 0 and current < ttl then
+					redis.call('EXPIRE', KEYS[i], ttl)
+				end
+			end
+			return present
+			""");
+	/**
+	 * Replaces the session hash, keeping only its version and the fields passed as arguments. KEYS holds the session key and, for writes
+	 * made under a lease lock, the lock key. ARGV holds the lock owner (ignored without a lock key), the session expiry, the number of
+	 * kept fields, the kept fields, and the written field/value pairs. Returns the new session version, or -2 if the lease was lost.
+	 */
+	protected static final RedisScript WRITE_SCRIPT = new RedisScript("""
+			if KEYS[2] and redis.call('GET', KEYS[2]) ~= ARGV[1] then return -2 end
+			local last = 3 + tonumber(ARGV[3])
+			local keep = {['redex:version'] = true}
+			for i = 4, last do keep[ARGV[i]] = true end
+			for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do
+				if not keep[field] then redis.call('HDEL', KEYS[1], field) end
+			end
+			for i = last + 1, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end
+			local version = redis.call('HINCRBY', KEYS[1], 'redex:version', 1)
+			redis.call('EXPIRE', KEYS[1], ARGV[2])
+			return version
+			""");
+	/**
+	 * Merges changed attributes into an existing session hash. KEYS are as for {@link #WRITE_SCRIPT}. ARGV holds the lock owner, the
+	 * session expiry, the number of written fields, the written field/value pairs, and finally the names of removed attributes. Older
+	 * fields of every written or removed attribute are deleted, since an attribute's field name changes with its type. Returns the new
+	 * session version followed by the chunk references that are kept, whose chunks the caller gives the session's expiry as nothing else
+	 * refreshes them; -1 if the session no longer exists, or -2 if the lease was lost.
+	 */
+	protected static final RedisScript MERGE_SCRIPT = new RedisScript("""
+			if KEYS[2] and redis.call('GET', KEYS[2]) ~= ARGV[1] then return -2 end
+			if redis.call('EXISTS', KEYS[1]) == 0 then return -1 end
+			local last = 3 + tonumber(ARGV[3]) * 2
+			local written = {}
+			local names = {}
+			for i = 4, last, 2 do
+				written[ARGV[i]] = true
+				names[string.sub(ARGV[i], 7)] = true
+			end
+			for i = last + 1, #ARGV do names[ARGV[i]] = true end
+			local kept = {}
+			for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do
+				if not written[field] and field ~= 'redex:version' then
+					if names[string.sub(field, 7)] then
+						redis.call('HDEL', KEYS[1], field)
+					elseif string.sub(field, 5, 5) == 'r' then
+						kept[#kept + 1] = redis.call('HGET', KEYS[1], field)
+					end
+				end
+			end
+			for i = 4, last, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end
+			local result = {redis.call('HINCRBY', KEYS[1], 'redex:version', 1)}
+			for _, reference in ipairs(kept) do result[#result + 1] = reference end
+			redis.call('EXPIRE', KEYS[1], ARGV[2])
+			return result
+			""");
+	/**
+	 * Acquires a session lease lock and returns the lock owner followed by the session hash, or nil if the lock is held. KEYS holds the
+	 * lock key, the session key, and the fencing token counter. ARGV holds the node id and the lease in milliseconds.
+	 */
+	protected static final RedisScript LOCK_AND_LOAD_SCRIPT = new RedisScript("""
+			if redis.call('EXISTS', KEYS[1]) == 1 then return false end
+			local owner = ARGV[1] .. ':' .. redis.call('INCR', KEYS[3])
+			redis.call('SET', KEYS[1], owner, 'PX', ARGV[2])
+			local result = redis.call('HGETALL', KEYS[2])
+			table.insert(result, 1, owner)
+			return result
+			""");
+	/**
+	 * Extends the lease of KEYS[1] to ARGV[2] milliseconds if it is still owned by ARGV[1]. Returns 1 if it was, 0 otherwise.
+	 */
+	protected static final RedisScript RENEW_LOCK_SCRIPT = new RedisScript("""
+			if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end
+			return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+			""");
+	/**
+	 * Deletes the lock KEYS[1] if it is still owned by ARGV[1].
+	 */
+	protected static final RedisScript RELEASE_LOCK_SCRIPT = new RedisScript("""
+			if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end
+			return redis.call('DEL', KEYS[1])
+			""");
 	private final String url;
 	private final String keyPrefix;
-	private final EncryptionSupport encryptionSupport;
+	private final SessionCodec sessionCodec;
 	private final String nodeId;
 	private final int poolMinIdle;
 	private final int poolMaxIdle;
 	private final int poolMaxTotal;
 	private final long poolMaxWaitMillis;
 	private final long poolMinEvictableIdleTimeMillis;
-	private UnifiedJedis jedis;
-	private SessionDestructionListener destructionListener;
-	private SessionEvicitionListener evicitionListener;
+	private int timeoutMillis = 2000;
+	private boolean expiryNotifications;
+	private String nodeName;
+	private int recentSessionLimit;
+	private long recentSessionTtlSeconds;
+	private List<byte[]> hotAttributes = List.of();
+	private Set<String> hotAttributeNames = Set.of();
+	private int chunkThresholdBytes;
+	private int chunkSizeBytes;
+	private Set<String> sharedAttributes = Set.of();
+	private SharedAttributeCache sharedAttributeCache;
+	private JedisPooled jedis;
+	private RedisConnectionRegistry.SharedConnection sharedConnection;
+	private SessionEventListener.Registration registration;
+	private long eventStreamMaxLength;
+	private int eventStreamBatchSize;
+	private SessionEventStream.Registration streamRegistration;
+	private String backupRoute;
+	private int adaptivePoolMaxTotal;
+	private long adaptivePoolTargetWaitMillis;
+	private AdaptivePoolSizer adaptivePoolSizer;
+	private final LongAdder fencedWriteCount = new LongAdder();
+	private int codecParallelism;
+	private int codecParallelMinAttributes;
+	private int codecParallelMinBytes;
+	private CodecPool codecPool;
 
-	public JedisRedisService(final String url, final String keyPrefix, final String nodeId, final String keyPassword,
-			final String keySalt, final int poolMinIdle, final int poolMaxIdle, final int poolMaxTotal,
-			final long poolMaxWaitMillis, final long poolMinEvictableIdleTimeMillis) {
+	public JedisRedisService(final String url, final String keyPrefix, final String nodeId, final SessionCodec sessionCodec,
+			final int poolMinIdle, final int poolMaxIdle, final int poolMaxTotal, final long poolMaxWaitMillis,
+			final long poolMinEvictableIdleTimeMillis) {
 		this.url = url;
 		this.keyPrefix = keyPrefix;
 		this.nodeId = nodeId;
@@ -79,11 +233,7 @@ public class JedisRedisService implements Closeable, RedisService {
 		this.poolMaxTotal = poolMaxTotal;
 		this.poolMaxWaitMillis = poolMaxWaitMillis;
 		this.poolMinEvictableIdleTimeMillis = poolMinEvictableIdleTimeMillis;
-		if (keyPassword != null && !keyPassword.trim().isEmpty()) {
-			encryptionSupport = new EncryptionSupport(keyPassword, keySalt);
-		} else {
-			encryptionSupport = null;
-		}
+		this.sessionCodec = sessionCodec;
 	}
 
 	@SuppressWarnings("deprecation")
@@ -97,151 +247,747 @@ public class JedisRedisService implements Closeable, RedisService {
 		poolConfig.setJmxEnabled(true);
 		poolConfig.setMinEvictableIdleTime(Duration.of(poolMinEvictableIdleTimeMillis, ChronoUnit.MILLIS));
 		poolConfig.setBlockWhenExhausted(true);
-		jedis = new JedisPooled(poolConfig, url);
-		destructionListener = new SessionDestructionListener(sessionRemover, jedis, REDEX_SESSION_DESTRUCTION + keyPrefix, nodeId);
-		evicitionListener = new SessionEvicitionListener(sessionRemover, jedis, REDEX_SESSION_EVICTION + keyPrefix, nodeId);
+		sharedConnection = RedisConnectionRegistry.acquire(url, poolConfig, timeoutMillis);
+		jedis = sharedConnection.getJedis();
+		if (adaptivePoolMaxTotal > 0) {
+			adaptivePoolSizer = sharedConnection.enableAdaptivePoolSizing(adaptivePoolMaxTotal, adaptivePoolTargetWaitMillis);
+		}
+		if (codecParallelism > 0) {
+			codecPool = new CodecPool(codecParallelism, codecParallelMinAttributes, codecParallelMinBytes, keyPrefix);
+		}
+		if (eventStreamMaxLength > 0) {
+			streamRegistration = sharedConnection.getSessionEventStream().register(toEventStreamKey(), sessionRemover, nodeId,
+					eventStreamBatchSize, backupRoute);
+		}
+		if (eventStreamMaxLength <= 0 || expiryNotifications) {
+			registration = sharedConnection.getSessionEventListener().register(keyPrefix, sessionRemover, nodeId,
+					SessionChangeset.toEncodedSessionId(keyPrefix, ""), expiryNotifications, backupRoute);
+		}
 	}
 
 	@Override
 	public void close() {
-		destructionListener.close();
-		destructionListener = null;
-		evicitionListener.close();
-		evicitionListener = null;
-		jedis.close();
+		if (streamRegistration != null) {
+			sharedConnection.getSessionEventStream().unregister(streamRegistration);
+			streamRegistration = null;
+		}
+		if (registration != null) {
+			sharedConnection.getSessionEventListener().unregister(registration);
+			registration = null;
+		}
+		RedisConnectionRegistry.release(sharedConnection);
+		sharedConnection = null;
+		if (codecPool != null) {
+			codecPool.close();
+			codecPool = null;
+		}
+		adaptivePoolSizer = null;
 		jedis = null;
 	}
 
 	@Override
-	public void publishChangeset(final SessionChangeset sessionChangeset) {
+	public boolean publishChangeset(final SessionChangeset sessionChangeset) {
+		final Map<String, byte[]> chunkedValues = new HashMap<>();
+		final Map<byte[], byte[]> encodedMap = toEncodedMap(sessionChangeset, chunkedValues);
+		long bytesWritten = 0;
+		for (final Map.Entry<byte[], byte[]> entry : encodedMap.entrySet()) {
+			bytesWritten += entry.getKey().length + entry.getValue().length;
+		}
+		RequestTimings.recordBytesWritten(bytesWritten);
+		try {
+			storeChunks(chunkedValues, sessionChangeset.getRetainedChunkReferences(), sessionChangeset.getExpirationInSeconds());
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
 		try (final Transaction multi = jedis.multi()) {
 			final byte[] sessionKey = sessionChangeset.toEncodedSessionId(keyPrefix);
-			multi.del(sessionKey);
-			final Map<byte[], byte[]> encodedMap = toEncodedMap(encryptionSupport, sessionChangeset.getSessionMap());
-			multi.hset(sessionKey, encodedMap);
-			multi.expire(sessionKey, sessionChangeset.getExpirationInSeconds());
-			multi.publish((REDEX_SESSION_EVICTION + keyPrefix).getBytes(StandardCharsets.UTF_8),
-					new SessionEvictionMessage(nodeId, sessionChangeset.getSessionId()).toBytes());
+			final List<byte[]> keys = new ArrayList<>(List.of(sessionKey));
+			if (sessionChangeset.getLockOwner() != null) {
+				keys.add(toLockKey(sessionChangeset.getSessionId()));
+			}
+			final Response<Object> written;
+			if (sessionChangeset.isMerge()) {
+				written = multi.eval(MERGE_SCRIPT.getScript(), keys, toMergeArguments(sessionChangeset, encodedMap));
+			} else {
+				written = multi.eval(WRITE_SCRIPT.getScript(), keys, toWriteArguments(sessionChangeset, encodedMap));
+			}
+			if (nodeName != null && recentSessionLimit > 0) {
+				final byte[] recentSessionsKey = toRecentSessionsKey();
+				final long timeNow = System.currentTimeMillis();
+				multi.zadd(recentSessionsKey, timeNow, sessionChangeset.getSessionId().getBytes(StandardCharsets.UTF_8));
+				multi.zremrangeByScore(recentSessionsKey, Double.NEGATIVE_INFINITY, timeNow - recentSessionTtlSeconds * 1000d);
+				multi.zremrangeByRank(recentSessionsKey, 0, -(recentSessionLimit + 1));
+				multi.expire(recentSessionsKey, recentSessionTtlSeconds);
+			}
+			if (eventStreamMaxLength > 0) {
+				final Map<String, String> fields = new HashMap<>(Map.of(SessionEventStream.TYPE, SessionEventStream.TYPE_EVICT,
+						SessionEventStream.NODE, nodeId, SessionEventStream.SESSION, sessionChangeset.getSessionId()));
+				if (sessionChangeset.getBackupRoute() != null) {
+					fields.put(SessionEventStream.BACKUP, sessionChangeset.getBackupRoute());
+				}
+				multi.xadd(toEventStreamKey(), toEventStreamParams(), fields);
+			} else {
+				multi.publish((REDEX_SESSION_EVICTION + keyPrefix).getBytes(StandardCharsets.UTF_8),
+						new SessionEvictionMessage(nodeId, sessionChangeset.getSessionId(), sessionChangeset.getBackupRoute()).toBytes());
+			}
 			multi.exec();
+			Object version = written.get();
+			if (version instanceof List) {
+				final List<?> merged = (List<?>) version;
+				version = merged.get(0);
+				touchChunks(merged.subList(1, merged.size()), sessionChangeset.getExpirationInSeconds());
+			}
+			if (Long.valueOf(-1).equals(version)) {
+				log.debug("publishChangeset() sessionId:{} no longer exists, changes were not merged", sessionChangeset.getSessionId());
+			} else if (Long.valueOf(-2).equals(version)) {
+				fencedWriteCount.increment();
+				log.warn("publishChangeset() lease of sessionId:{} was lost, write rejected", sessionChangeset.getSessionId());
+			} else {
+				sessionChangeset.setVersion((long) version);
+			}
+			return !Long.valueOf(-1).equals(version);
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	protected List<byte[]> toWriteArguments(final SessionChangeset sessionChangeset, final Map<byte[], byte[]> encodedMap) {
+		final List<byte[]> arguments = new ArrayList<>();
+		final List<byte[]> retainedFields = sessionChangeset.getRetainedFields();
+		arguments.add(toLockOwner(sessionChangeset));
+		arguments.add(Long.toString(sessionChangeset.getExpirationInSeconds()).getBytes(StandardCharsets.UTF_8));
+		arguments.add(Integer.toString(retainedFields.size()).getBytes(StandardCharsets.UTF_8));
+		arguments.addAll(retainedFields);
+		for (final Map.Entry<byte[], byte[]> entry : encodedMap.entrySet()) {
+			arguments.add(entry.getKey());
+			arguments.add(entry.getValue());
+		}
+		return arguments;
+	}
+
+	protected List<byte[]> toMergeArguments(final SessionChangeset sessionChangeset, final Map<byte[], byte[]> encodedMap) {
+		final List<byte[]> arguments = new ArrayList<>();
+		arguments.add(toLockOwner(sessionChangeset));
+		arguments.add(Long.toString(sessionChangeset.getExpirationInSeconds()).getBytes(StandardCharsets.UTF_8));
+		arguments.add(Integer.toString(encodedMap.size()).getBytes(StandardCharsets.UTF_8));
+		for (final Map.Entry<byte[], byte[]> entry : encodedMap.entrySet()) {
+			arguments.add(entry.getKey());
+			arguments.add(entry.getValue());
+		}
+		for (final String removedAttribute : sessionChangeset.getRemovedAttributes()) {
+			arguments.add(removedAttribute.getBytes(StandardCharsets.UTF_8));
+		}
+		return arguments;
+	}
+
+	protected byte[] toLockOwner(final SessionChangeset sessionChangeset) {
+		final String lockOwner = sessionChangeset.getLockOwner();
+		return (lockOwner == null ? "" : lockOwner).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public SessionLease lockAndLoadSessionMap(final String sessionId, final long leaseMillis, final Context context) {
+		try {
+			@SuppressWarnings("unchecked")
+			final List<byte[]> reply = (List<byte[]>) LOCK_AND_LOAD_SCRIPT.eval(jedis,
+					List.of(toLockKey(sessionId), SessionChangeset.toEncodedSessionId(keyPrefix, sessionId),
+							(REDEX_LOCK_TOKEN + keyPrefix).getBytes(StandardCharsets.UTF_8)),
+					List.of(nodeId.getBytes(StandardCharsets.UTF_8), Long.toString(leaseMillis).getBytes(StandardCharsets.UTF_8)));
+			final SessionLease sessionLease;
+			if (reply == null) {
+				sessionLease = null;
+			} else {
+				final Map<byte[], byte[]> encodedMap = new HashMap<>();
+				for (int i = 1; i < reply.size(); i += 2) {
+					encodedMap.put(reply.get(i), reply.get(i + 1));
+				}
+				sessionLease = new SessionLease(new String(reply.get(0), StandardCharsets.UTF_8), decodeSessionMap(encodedMap, context));
+			}
+			return sessionLease;
+		} catch (final JedisException e) {
+			throw toServiceException(e);
 		}
 	}
 
+	@Override
+	public boolean renewLock(final String sessionId, final String owner, final long leaseMillis) {
+		try {
+			return Long.valueOf(1).equals(RENEW_LOCK_SCRIPT.eval(jedis, List.of(toLockKey(sessionId)),
+					List.of(owner.getBytes(StandardCharsets.UTF_8), Long.toString(leaseMillis).getBytes(StandardCharsets.UTF_8))));
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	@Override
+	public void releaseLock(final String sessionId, final String owner) {
+		try {
+			RELEASE_LOCK_SCRIPT.eval(jedis, List.of(toLockKey(sessionId)), List.of(owner.getBytes(StandardCharsets.UTF_8)));
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	protected String toEventStreamKey() {
+		return REDEX_SESSION_EVENTS + keyPrefix;
+	}
+
+	protected XAddParams toEventStreamParams() {
+		return XAddParams.xAddParams().maxLen(eventStreamMaxLength).approximateTrimming();
+	}
+
+	protected byte[] toLockKey(final String sessionId) {
+		return (REDEX_LOCK + keyPrefix + ":" + sessionId).getBytes(StandardCharsets.UTF_8);
+	}
+
+	public long getFencedWriteCount() {
+		return fencedWriteCount.sum();
+	}
+
 	@Override
 	public void remove(final String sessionId) {
 		final byte[] sessionKey = SessionChangeset.toEncodedSessionId(keyPrefix, sessionId);
 		try (final Transaction multi = jedis.multi()) {
 			multi.del(sessionKey);
-			multi.publish((REDEX_SESSION_DESTRUCTION + keyPrefix).getBytes(StandardCharsets.UTF_8),
-					new SessionDestructionMessage(nodeId, sessionId).toBytes());
+			if (nodeName != null && recentSessionLimit > 0) {
+				multi.zrem(toRecentSessionsKey(), sessionId.getBytes(StandardCharsets.UTF_8));
+			}
+			if (eventStreamMaxLength > 0) {
+				multi.xadd(toEventStreamKey(), toEventStreamParams(), Map.of(SessionEventStream.TYPE, SessionEventStream.TYPE_DESTROY,
+						SessionEventStream.NODE, nodeId, SessionEventStream.SESSION, sessionId));
+			} else {
+				multi.publish((REDEX_SESSION_DESTRUCTION + keyPrefix).getBytes(StandardCharsets.UTF_8),
+						new SessionDestructionMessage(nodeId, sessionId).toBytes());
+			}
 			multi.exec();
+		} catch (final JedisException e) {
+			throw toServiceException(e);
 		}
 	}
 
 	@Override
 	public Map<String, Object> loadSessionMap(final String sessionId, final Context context) {
 		try {
-			final Map<String, Object> sessionMap;
 			final byte[] sessionKey = SessionChangeset.toEncodedSessionId(keyPrefix, sessionId);
-			final Map<byte[], byte[]> encodedMap = jedis.hgetAll(sessionKey);
+			final Map<String, Object> sessionMap;
+			if (hotAttributes.isEmpty()) {
+				sessionMap = decodeSessionMap(jedis.hgetAll(sessionKey), context);
+			} else {
+				@SuppressWarnings("unchecked")
+				final List<byte[]> reply = (List<byte[]>) LOAD_PARTIAL_SCRIPT.eval(jedis, List.of(sessionKey), hotAttributes);
+				sessionMap = decodePartialSessionMap(reply, context);
+			}
+			return sessionMap;
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	@Override
+	public Map<String, Object> loadDeferredAttributes(final String sessionId, final Map<String, DeferredAttribute> deferredAttributes,
+			final Context context) {
+		try {
+			final Map<String, Object> attributes = new HashMap<>();
+			final byte[][] storageKeys = deferredAttributes.values().stream()
+					.map((final DeferredAttribute deferredAttribute) -> deferredAttribute.storageKey).toArray(byte[][]::new);
+			final List<byte[]> values = jedis.hmget(SessionChangeset.toEncodedSessionId(keyPrefix, sessionId), storageKeys);
+			final ClassLoader classLoader = context.getLoader().getClassLoader();
+			for (int i = 0; i < storageKeys.length; i++) {
+				if (values.get(i) != null) {
+					final String fullKey = new String(storageKeys[i], StandardCharsets.UTF_8);
+					attributes.put(fullKey.substring(6), decodeValue(fullKey, values.get(i), classLoader));
+				}
+			}
+			return attributes;
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, Object>> loadRecentSessionMaps(final Context context) {
+		final Map<String, Map<String, Object>> sessionMaps = new ConcurrentHashMap<>();
+		if (nodeName != null && recentSessionLimit > 0) {
+			try {
+				final long timeNow = System.currentTimeMillis();
+				final List<byte[]> sessionIds = jedis.zrevrangeByScore(toRecentSessionsKey(), Double.POSITIVE_INFINITY,
+						timeNow - recentSessionTtlSeconds * 1000d, 0, recentSessionLimit);
+				final Map<String, Response<Map<byte[], byte[]>>> responses = new HashMap<>();
+				try (final Pipeline pipeline = jedis.pipelined()) {
+					for (final byte[] encodedSessionId : sessionIds) {
+						final String sessionId = new String(encodedSessionId, StandardCharsets.UTF_8);
+						responses.put(sessionId, pipeline.hgetAll(SessionChangeset.toEncodedSessionId(keyPrefix, sessionId)));
+					}
+					pipeline.sync();
+				}
+				responses.entrySet().parallelStream().forEach((final Map.Entry<String, Response<Map<byte[], byte[]>>> entry) -> {
+					try {
+						final Map<String, Object> sessionMap = decodeSessionMap(entry.getValue().get(), context);
+						if (sessionMap != null) {
+							sessionMaps.put(entry.getKey(), sessionMap);
+						}
+					} catch (final RuntimeException e) {
+						log.warn("loadRecentSessionMaps() could not decode sessionId:{}", entry.getKey(), e);
+					}
+				});
+			} catch (final JedisException e) {
+				throw toServiceException(e);
+			}
+		}
+		return sessionMaps;
+	}
+
+	@Override
+	public Map<String, byte[]> loadStoredFields(final Collection<String> sessionIds, final byte[] storageKey) {
+		try {
+			final Map<String, Response<byte[]>> responses = new HashMap<>();
+			try (final Pipeline pipeline = jedis.pipelined()) {
+				for (final String sessionId : sessionIds) {
+					responses.put(sessionId, pipeline.hget(SessionChangeset.toEncodedSessionId(keyPrefix, sessionId), storageKey));
+				}
+				pipeline.sync();
+			}
+			final Map<String, byte[]> storedFields = new HashMap<>();
+			for (final Map.Entry<String, Response<byte[]>> entry : responses.entrySet()) {
+				if (entry.getValue().get() != null) {
+					storedFields.put(entry.getKey(), entry.getValue().get());
+				}
+			}
+			return storedFields;
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	protected Map<String, Object> decodeSessionMap(final Map<byte[], byte[]> encodedMap, final Context context) {
+		try {
+			final Map<String, Object> sessionMap;
 			if (encodedMap == null || encodedMap.isEmpty()) {
 				sessionMap = null;
 			} else {
 				sessionMap = new HashMap<>();
-				for (final byte[] encodedKey : encodedMap.keySet()) {
-					final String fullKey = new String(encodedKey, StandardCharsets.UTF_8);
-
-					final String key = fullKey.substring(6);
-					final char[] encryptionHeader = fullKey.substring(3, 5).toCharArray();
-					byte[] encodedBytes;
-					switch (encryptionHeader[0]) {
-						case 'p' -> {
-							encodedBytes = encodedMap.get(encodedKey);
-						}
-						case 'c' -> {
-							if (encryptionSupport == null) {
-								throw new RuntimeException(
-										"Session data is encrypted but no keyPassword was configured. Set keyPassword to decrypt existing sessions.");
-							}
-							encodedBytes = encryptionSupport.decrypt(encodedMap.get(encodedKey));
-						}
-						default -> {
-							throw new RuntimeException("Unknown encryptionHeader prefix:" + fullKey);
-						}
+				final ClassLoader classLoader = context.getLoader().getClassLoader();
+				final List<String> names = new ArrayList<>();
+				final List<Callable<Object>> tasks = new ArrayList<>();
+				long storedBytes = 0;
+				for (final Map.Entry<byte[], byte[]> entry : encodedMap.entrySet()) {
+					final String fullKey = new String(entry.getKey(), StandardCharsets.UTF_8);
+					if (SessionChangeset.REDEX_VERSION.equals(fullKey)) {
+						sessionMap.put(fullKey, Long.parseLong(new String(entry.getValue(), StandardCharsets.UTF_8)));
+					} else {
+						names.add(fullKey.substring(6));
+						tasks.add(() -> decodeValue(fullKey, entry.getValue(), classLoader));
+						storedBytes += entry.getValue().length;
 					}
+				}
+				final List<Object> values = invokeCodecTasks(tasks, storedBytes, classLoader);
+				for (int i = 0; i < names.size(); i++) {
+					sessionMap.put(names.get(i), values.get(i));
+				}
+			}
+			return sessionMap;
+		} catch (final JedisException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-					final Object value;
-					final char[] valueEncodingHeader = fullKey.substring(0, 2).toCharArray();
-					try (final ByteArrayInputStream bais = new ByteArrayInputStream(encodedBytes)) {
-						switch (valueEncodingHeader[0]) {
-							case 's' -> {
-								try (ObjectInputStream ois = new ClassloaderAwareObjectInputStream(context.getLoader().getClassLoader(), bais)) {
-									value = ois.readObject();
-								}
-							}
-							case 'd' -> {
-								try (AutoDataInputStream adis = new AutoDataInputStream(bais)) {
-									value = adis.readType(valueEncodingHeader[1]);
-								}
-							}
-							default -> {
-								throw new RuntimeException("Unknown encodingHeader prefix:" + fullKey);
-							}
-						}
+	protected Map<String, Object> decodePartialSessionMap(final List<byte[]> reply, final Context context) {
+		try {
+			final Map<String, Object> sessionMap;
+			if (reply == null || reply.isEmpty()) {
+				sessionMap = null;
+			} else {
+				sessionMap = new HashMap<>();
+				final ClassLoader classLoader = context.getLoader().getClassLoader();
+				final List<String> names = new ArrayList<>();
+				final List<Callable<Object>> tasks = new ArrayList<>();
+				long decodedBytes = 0;
+				for (int i = 0; i < reply.size(); i += 2) {
+					final String fullKey = new String(reply.get(i), StandardCharsets.UTF_8);
+					final byte[] storedBytes = reply.get(i + 1);
+					final String name = fullKey.substring(6);
+					if (SessionChangeset.REDEX_VERSION.equals(fullKey)) {
+						sessionMap.put(fullKey, Long.parseLong(new String(storedBytes, StandardCharsets.UTF_8)));
+					} else if (storedBytes == null) {
+						sessionMap.put(name, new DeferredAttribute(reply.get(i)));
+					} else if (SessionCodec.isReference(fullKey) && !hotAttributeNames.contains(name)) {
+						final Object sharedValue = findShared(storedBytes);
+						sessionMap.put(name, sharedValue == null ? new DeferredAttribute(reply.get(i), storedBytes) : sharedValue);
+					} else {
+						names.add(name);
+						tasks.add(() -> decodeValue(fullKey, storedBytes, classLoader));
+						decodedBytes += storedBytes.length;
 					}
-					sessionMap.put(key, value);
+				}
+				final List<Object> values = invokeCodecTasks(tasks, decodedBytes, classLoader);
+				for (int i = 0; i < names.size(); i++) {
+					sessionMap.put(names.get(i), values.get(i));
 				}
 			}
 			return sessionMap;
+		} catch (final JedisException e) {
+			throw e;
 		} catch (final Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	public Map<byte[], byte[]> toEncodedMap(final EncryptionSupport encryptionSupport, final Map<String, Object> changsetMap) {
+	protected Object decodeValue(final String fullKey, final byte[] storedBytes, final ClassLoader classLoader) throws Exception {
+		if (SessionCodec.isReference(fullKey)) {
+			final String digest = toDigest(storedBytes);
+			Object value = sharedAttributeCache == null ? null : sharedAttributeCache.get(digest);
+			if (value == null) {
+				final byte[] chunkedBytes = loadChunks(storedBytes);
+				if (chunkedBytes != null) {
+					value = sessionCodec.decode(fullKey, chunkedBytes, classLoader);
+					if (sharedAttributeCache != null && isShared(SessionCodec.toAttributeName(fullKey), value)) {
+						value = sharedAttributeCache.put(new SharedAttributeCache.SharedValue(value, digest, SessionCodec.toTypeHeader(fullKey),
+								SessionCodec.toEncryptionHeader(fullKey), chunkedBytes));
+					}
+				}
+			}
+			return value;
+		} else {
+			return sessionCodec.decode(fullKey, storedBytes, classLoader);
+		}
+	}
+
+	/**
+	 * @return the node's shared instance of a chunked value, or null if it isn't cached
+	 */
+	protected Object findShared(final byte[] chunkReference) {
+		return sharedAttributeCache == null ? null : sharedAttributeCache.get(toDigest(chunkReference));
+	}
+
+	protected boolean isShared(final String key, final Object value) {
+		return sharedAttributes.contains(key) || value != null && sharedAttributes.contains(value.getClass().getName());
+	}
+
+	/**
+	 * @param chunkedValues values larger than the chunk threshold are added to this map by content digest, and the returned map only
+	 *          holds a reference to them
+	 */
+	protected Map<byte[], byte[]> toEncodedMap(final SessionChangeset sessionChangeset, final Map<String, byte[]> chunkedValues) {
 		try {
 			final Map<byte[], byte[]> redisMap = new HashMap<>();
-
-			for (final String key : changsetMap.keySet()) {
-				final byte[] encodedBytes;
-				final StringBuilder storageKey = new StringBuilder();
-				final Object value = changsetMap.get(key);
-				final boolean isBasic = isBasic(value);
-				try (final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-					if (isBasic) {
-						try (AutoDataOutputStream ados = new AutoDataOutputStream(baos)) {
-							final char writeType = ados.writeValue(value);
-							storageKey.append("d");
-							storageKey.append(writeType);
-							storageKey.append(":");
-							ados.flush();
-						}
-					} else {
-						try (final ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-							storageKey.append("so:");
-							oos.writeObject(value);
-							oos.flush();
-						}
+			for (final EncodedAttribute encodedAttribute : sessionChangeset.getEncodedAttributes()) {
+				putEncoded(redisMap, chunkedValues, encodedAttribute, null);
+			}
+			final List<Callable<EncodedAttribute>> tasks = new ArrayList<>();
+			for (final Map.Entry<String, Object> entry : sessionChangeset.getSessionMap().entrySet()) {
+				final String key = entry.getKey();
+				final Object value = entry.getValue();
+				if (sharedAttributeCache != null && isShared(key, value)) {
+					SharedAttributeCache.SharedValue sharedValue = sharedAttributeCache.find(value);
+					if (sharedValue == null) {
+						final EncodedAttribute encodedAttribute = sessionCodec.encode(key, value);
+						sharedValue = new SharedAttributeCache.SharedValue(value, sessionCodec.digest(encodedAttribute),
+								encodedAttribute.typeHeader, encodedAttribute.encryptionHeader, encodedAttribute.storedBytes);
+						sharedAttributeCache.put(sharedValue);
 					}
-					encodedBytes = baos.toByteArray();
-				}
-				if (encryptionSupport == null || plaintextAttributes.contains(key) || isBasic) {
-					storageKey.append("pt:");
-					storageKey.append(key);
-					redisMap.put(storageKey.toString().getBytes(StandardCharsets.UTF_8), encodedBytes);
+					putEncoded(redisMap, chunkedValues, sharedValue.toEncodedAttribute(key), sharedValue.digest);
 				} else {
-					storageKey.append("ct:");
-					storageKey.append(key);
-					final byte[] encryptedBytes = encryptionSupport.encrypt(encodedBytes);
-					redisMap.put(storageKey.toString().getBytes(StandardCharsets.UTF_8), encryptedBytes);
+					tasks.add(() -> sessionCodec.encode(key, value));
 				}
 			}
+			for (final EncodedAttribute encodedAttribute : invokeCodecTasks(tasks, 0, Thread.currentThread().getContextClassLoader())) {
+				putEncoded(redisMap, chunkedValues, encodedAttribute, null);
+			}
 			return redisMap;
+		} catch (final RuntimeException e) {
+			throw e;
 		} catch (final Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	protected static boolean isBasic(final Object value) {
-		return ClassUtils.isPrimitiveOrWrapper(value.getClass()) || value instanceof String;
+	/**
+	 * Runs per attribute encoding or decoding tasks, in the codec pool if the session is large enough to be worth it, on the calling
+	 * thread otherwise.
+	 *
+	 * @param storedBytes stored size of the session, or 0 if it isn't known
+	 * @return the results, in task order
+	 */
+	protected <T> List<T> invokeCodecTasks(final List<Callable<T>> tasks, final long storedBytes, final ClassLoader classLoader)
+			throws Exception {
+		final List<T> results;
+		if (codecPool != null && codecPool.isParallel(tasks.size(), storedBytes)) {
+			results = codecPool.invokeAll(tasks, classLoader);
+		} else {
+			results = new ArrayList<>(tasks.size());
+			for (final Callable<T> task : tasks) {
+				results.add(task.call());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @param sharedDigest digest of a shared value, which is always stored by reference; null otherwise
+	 */
+	protected void putEncoded(final Map<byte[], byte[]> redisMap, final Map<String, byte[]> chunkedValues,
+			final EncodedAttribute encodedAttribute, final String sharedDigest) {
+		final byte[] storedBytes = encodedAttribute.storedBytes;
+		if (sharedDigest != null || chunkThresholdBytes > 0 && storedBytes.length > chunkThresholdBytes) {
+			final String digest = sharedDigest == null ? sessionCodec.digest(encodedAttribute) : sharedDigest;
+			chunkedValues.put(digest, storedBytes);
+			redisMap.put(encodedAttribute.toStorageKey(EncodedAttribute.REFERENCE),
+					(digest + ":" + toChunkCount(storedBytes.length)).getBytes(StandardCharsets.UTF_8));
+		} else {
+			redisMap.put(encodedAttribute.toStorageKey(EncodedAttribute.INLINE), storedBytes);
+		}
+	}
+
+	/**
+	 * Uploads the chunks of oversized values that Redis doesn't already have, and extends the expiry of the ones it does. Chunks are
+	 * written outside of the session transaction, one bounded command at a time, so other clients aren't stalled behind them.
+	 */
+	protected void storeChunks(final Map<String, byte[]> chunkedValues, final List<byte[]> retainedChunkReferences,
+			final long expirationInSeconds) {
+		final List<byte[]> ttl = List.of(Long.toString(expirationInSeconds).getBytes(StandardCharsets.UTF_8));
+		for (final byte[] chunkReference : retainedChunkReferences) {
+			TOUCH_CHUNKS_SCRIPT.eval(jedis, toChunkKeys(chunkReference), ttl);
+		}
+		final List<Map.Entry<String, byte[]>> missingValues = new ArrayList<>();
+		for (final Map.Entry<String, byte[]> entry : chunkedValues.entrySet()) {
+			final List<byte[]> chunkKeys = toChunkKeys(entry.getKey(), toChunkCount(entry.getValue().length));
+			if (Long.valueOf(0).equals(TOUCH_CHUNKS_SCRIPT.eval(jedis, chunkKeys, ttl))) {
+				missingValues.add(entry);
+			}
+		}
+		if (!missingValues.isEmpty()) {
+			final SetParams setParams = SetParams.setParams().ex(expirationInSeconds);
+			try (final Pipeline pipeline = jedis.pipelined()) {
+				for (final Map.Entry<String, byte[]> entry : missingValues) {
+					final byte[] storedBytes = entry.getValue();
+					RequestTimings.recordBytesWritten(storedBytes.length);
+					final List<byte[]> chunkKeys = toChunkKeys(entry.getKey(), toChunkCount(storedBytes.length));
+					for (int i = 0; i < chunkKeys.size(); i++) {
+						pipeline.set(chunkKeys.get(i), Arrays.copyOfRange(storedBytes, i * chunkSizeBytes,
+								Math.min(storedBytes.length, (i + 1) * chunkSizeBytes)), setParams);
+					}
+				}
+				pipeline.sync();
+			}
+			log.debug("storeChunks() uploaded {} of {} oversized values", missingValues.size(), chunkedValues.size());
+		}
+	}
+
+	/**
+	 * Extends the expiry of the chunks of references a merge kept. They are touched after the merge, since their references are only
+	 * known once the stored session was read, and every chunk key is declared so the command can be routed by key.
+	 */
+	protected void touchChunks(final List<?> chunkReferences, final long expirationInSeconds) {
+		final List<byte[]> ttl = List.of(Long.toString(expirationInSeconds).getBytes(StandardCharsets.UTF_8));
+		for (final Object chunkReference : chunkReferences) {
+			TOUCH_CHUNKS_SCRIPT.eval(jedis, toChunkKeys((byte[]) chunkReference), ttl);
+		}
+	}
+
+	/**
+	 * @return the reassembled value, or null if any of its chunks expired
+	 */
+	protected byte[] loadChunks(final byte[] chunkReference) throws IOException {
+		final List<Response<byte[]>> responses = new ArrayList<>();
+		try (final Pipeline pipeline = jedis.pipelined()) {
+			for (final byte[] chunkKey : toChunkKeys(chunkReference)) {
+				responses.add(pipeline.get(chunkKey));
+			}
+			pipeline.sync();
+		}
+		try (final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+			for (final Response<byte[]> response : responses) {
+				final byte[] chunk = response.get();
+				if (chunk == null) {
+					log.warn("loadChunks() chunk missing for reference:{}", new String(chunkReference, StandardCharsets.UTF_8));
+					return null;
+				}
+				baos.write(chunk);
+			}
+			return baos.toByteArray();
+		}
+	}
+
+	protected String toDigest(final byte[] chunkReference) {
+		final String reference = new String(chunkReference, StandardCharsets.UTF_8);
+		return reference.substring(0, reference.lastIndexOf(':'));
+	}
+
+	protected int toChunkCount(final int length) {
+		return (length + chunkSizeBytes - 1) / chunkSizeBytes;
+	}
+
+	protected List<byte[]> toChunkKeys(final byte[] chunkReference) {
+		final String reference = new String(chunkReference, StandardCharsets.UTF_8);
+		return toChunkKeys(toDigest(chunkReference), Integer.parseInt(reference.substring(reference.lastIndexOf(':') + 1)));
+	}
+
+	protected List<byte[]> toChunkKeys(final String digest, final int chunkCount) {
+		final List<byte[]> chunkKeys = new ArrayList<>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			chunkKeys.add((REDEX_CHUNK + keyPrefix + ":" + digest + ":" + i).getBytes(StandardCharsets.UTF_8));
+		}
+		return chunkKeys;
+	}
+
+	/**
+	 * Store values larger than chunkThresholdBytes under separate, content addressed chunk keys instead of inline in the session hash.
+	 *
+	 * @param chunkThresholdBytes stored size above which a value is chunked; 0 disables chunking
+	 * @param chunkSizeBytes maximum size of a single chunk
+	 */
+	public void setChunking(final int chunkThresholdBytes, final int chunkSizeBytes) {
+		this.chunkThresholdBytes = chunkThresholdBytes;
+		this.chunkSizeBytes = Math.max(1, chunkSizeBytes);
+	}
+
+	/**
+	 * Store the values of the given attributes once, by content digest, instead of in every session that holds them. A value is shared
+	 * if its attribute name or its class name is listed. Shared values are chunked regardless of their size; their chunks live as long
+	 * as the longest lived session referencing them. Decoded values are shared between the sessions of this node.
+	 *
+	 * @param sharedAttributes attribute names and class names of shared values; empty disables sharing
+	 * @param sharedAttributeCacheSize maximum number of distinct decoded values kept on this node
+	 */
+	public void setSharedAttributes(final Set<String> sharedAttributes, final int sharedAttributeCacheSize) {
+		this.sharedAttributes = sharedAttributes;
+		sharedAttributeCache = sharedAttributes.isEmpty() ? null : new SharedAttributeCache(Math.max(1, sharedAttributeCacheSize));
+	}
+
+	public SharedAttributeCache getSharedAttributeCache() {
+		return sharedAttributeCache;
+	}
+
+	/**
+	 * Let the pool grow and shrink with observed demand between the configured pool bounds and adaptivePoolMaxTotal.
+	 *
+	 * @param adaptivePoolMaxTotal upper limit for the pool's maxTotal; 0 disables adaptive sizing
+	 * @param adaptivePoolTargetWaitMillis mean borrow wait above which the pool grows
+	 */
+	public void setAdaptivePool(final int adaptivePoolMaxTotal, final long adaptivePoolTargetWaitMillis) {
+		this.adaptivePoolMaxTotal = adaptivePoolMaxTotal;
+		this.adaptivePoolTargetWaitMillis = adaptivePoolTargetWaitMillis;
+	}
+
+	/**
+	 * Encodes and decodes the attributes of large sessions in parallel, in a fork-join pool of this service.
+	 *
+	 * @param codecParallelism the most threads used; 0 keeps all work on the request thread
+	 * @param codecParallelMinAttributes sessions with at least this many attributes are handled in parallel; 0 disables the check
+	 * @param codecParallelMinBytes sessions with at least this many stored bytes are decoded in parallel; 0 disables the check
+	 */
+	public void setParallelCodec(final int codecParallelism, final int codecParallelMinAttributes, final int codecParallelMinBytes) {
+		this.codecParallelism = codecParallelism;
+		this.codecParallelMinAttributes = codecParallelMinAttributes;
+		this.codecParallelMinBytes = codecParallelMinBytes;
+	}
+
+	public long getParallelCodecCount() {
+		return codecPool == null ? 0 : codecPool.getParallelCount();
+	}
+
+	public AdaptivePoolSizer getAdaptivePoolSizer() {
+		return adaptivePoolSizer;
+	}
+
+	/**
+	 * @return the shared stream event reader, or null if events are sent through pub/sub
+	 */
+	public SessionEventStream getSessionEventStream() {
+		return streamRegistration == null ? null : sharedConnection.getSessionEventStream();
+	}
+
+	public void setTimeoutMillis(final int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Keep an index in Redis of the sessions most recently written by this node, so they can be prefetched after a restart.
+	 *
+	 * @param nodeName a node identity that is stable across restarts
+	 * @param recentSessionLimit maximum number of session ids to keep in the index
+	 * @param recentSessionTtlSeconds how long an index entry is kept; usually the session timeout
+	 */
+	public void setRecentSessionIndex(final String nodeName, final int recentSessionLimit, final long recentSessionTtlSeconds) {
+		this.nodeName = nodeName;
+		this.recentSessionLimit = recentSessionLimit;
+		this.recentSessionTtlSeconds = recentSessionTtlSeconds;
+	}
+
+	/**
+	 * Records that the node with this route is alive, and drops the nodes that haven't said so for longer than timeoutMillis.
+	 *
+	 * @return the routes of the live nodes, this one included
+	 */
+	public List<String> heartbeatNode(final String route, final long timeoutMillis) {
+		try (final Transaction multi = jedis.multi()) {
+			final String nodesKey = REDEX_NODES + keyPrefix;
+			final long timeNow = System.currentTimeMillis();
+			multi.zadd(nodesKey, timeNow, route);
+			multi.zremrangeByScore(nodesKey, Double.NEGATIVE_INFINITY, timeNow - timeoutMillis);
+			final Response<List<String>> liveRoutes = multi.zrange(nodesKey, 0, -1);
+			multi.pexpire(nodesKey, timeoutMillis);
+			multi.exec();
+			return liveRoutes.get();
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	public void removeNode(final String route) {
+		try {
+			jedis.zrem(REDEX_NODES + keyPrefix, route);
+		} catch (final JedisException e) {
+			throw toServiceException(e);
+		}
+	}
+
+	/**
+	 * Writes naming this route as a session's backup are received as backup refreshes instead of evictions.
+	 */
+	public void setBackupRoute(final String backupRoute) {
+		this.backupRoute = backupRoute;
+	}
+
+	protected byte[] toRecentSessionsKey() {
+		return (REDEX_RECENT_SESSIONS + keyPrefix + ":" + nodeName).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Load only these attributes (and the redex metadata) eagerly; every other attribute is fetched on first access.
+	 */
+	public void setHotAttributes(final Set<String> hotAttributes) {
+		this.hotAttributes = hotAttributes.stream().map((final String name) -> name.getBytes(StandardCharsets.UTF_8)).toList();
+		hotAttributeNames = Set.copyOf(hotAttributes);
+	}
+
+	/**
+	 * Sends eviction and destruction events through a capped Redis stream per key prefix instead of pub/sub, so a node that lost its
+	 * connection catches up on the events it missed. Every node sharing the key prefix must use the same transport.
+	 *
+	 * @param eventStreamMaxLength the approximate number of events kept in the stream; 0 uses pub/sub
+	 * @param eventStreamBatchSize the most events read in one round trip
+	 */
+	public void setEventStream(final long eventStreamMaxLength, final int eventStreamBatchSize) {
+		this.eventStreamMaxLength = eventStreamMaxLength;
+		this.eventStreamBatchSize = eventStreamBatchSize;
+	}
+
+	public void setExpiryNotifications(final boolean expiryNotifications) {
+		this.expiryNotifications = expiryNotifications;
+	}
+
+	protected static RuntimeException toServiceException(final JedisException e) {
+		final RuntimeException serviceException;
+		if (e instanceof JedisConnectionException || e instanceof JedisBusyException || e.getCause() instanceof NoSuchElementException) {
+			serviceException = new RedisUnavailableException(e);
+		} else {
+			serviceException = e;
+		}
+		return serviceException;
 	}
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.jedis;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.exabrial.redexsm.inboundevents.SessionEventListener;
+import com.github.exabrial.redexsm.inboundevents.SessionEventStream;
+
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.util.JedisURIHelper;
+
+/**
+ * JVM wide, reference counted registry of Redis connections. Every session manager configured with the same redisUrl (which carries
+ * the credentials) shares one connection pool, one event subscriber and, if used, one event stream reader, so connection and thread
+ * counts stay flat no matter how many web applications a Tomcat runs. The pool settings and timeout of the first manager to start are
+ * used; later managers log a warning if theirs differ. The shared threads are started with this library's class loader as their
+ * context class loader, so they don't keep the web application that happened to create them from being unloaded.
+ *
+ * @author jonathan.fisher
+ */
+public final class RedisConnectionRegistry {
+	private static final Logger log = LoggerFactory.getLogger(RedisConnectionRegistry.class);
+	private static final Map<String, SharedConnection> connections = new HashMap<>();
+
+	private RedisConnectionRegistry() {
+	}
+
+	public static synchronized SharedConnection acquire(final String url, final ConnectionPoolConfig poolConfig, final int timeoutMillis) {
+		final String settings = toSettings(poolConfig, timeoutMillis);
+		SharedConnection connection = connections.get(url);
+		if (connection == null) {
+			final URI uri = URI.create(url);
+			final JedisPooled jedis = new JedisPooled(poolConfig, uri, timeoutMillis);
+			final SessionEventListener sessionEventListener = withLibraryClassLoader(() -> new SessionEventListener(jedis,
+					JedisRedisService.REDEX_SESSION_EVICTION, JedisRedisService.REDEX_SESSION_DESTRUCTION,
+					"__keyevent@" + JedisURIHelper.getDBIndex(uri) + "__:expired", "redex-events-" + uri.getHost() + ":" + uri.getPort()));
+			connection = new SharedConnection(url, jedis, sessionEventListener, poolConfig, settings, timeoutMillis);
+			connections.put(url, connection);
+			log.info("acquire() created shared connection to host:{} port:{}", uri.getHost(), uri.getPort());
+		} else if (!connection.settings.equals(settings)) {
+			log.warn("acquire() pool settings:{} ignored, the shared connection was created with settings:{}", settings,
+					connection.settings);
+		}
+		connection.references++;
+		return connection;
+	}
+
+	public static synchronized void release(final SharedConnection connection) {
+		connection.references--;
+		if (connection.references == 0) {
+			connections.remove(connection.url);
+			connection.sessionEventListener.close();
+			if (connection.sessionEventStream != null) {
+				connection.sessionEventStream.close();
+			}
+			connection.jedis.close();
+		}
+	}
+
+	protected static <T> T withLibraryClassLoader(final Supplier<T> supplier) {
+		final Thread currentThread = Thread.currentThread();
+		final ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+		currentThread.setContextClassLoader(RedisConnectionRegistry.class.getClassLoader());
+		try {
+			return supplier.get();
+		} finally {
+			currentThread.setContextClassLoader(contextClassLoader);
+		}
+	}
+
+	protected static String toSettings(final ConnectionPoolConfig poolConfig, final int timeoutMillis) {
+		return "minIdle=" + poolConfig.getMinIdle() + ",maxIdle=" + poolConfig.getMaxIdle() + ",maxTotal=" + poolConfig.getMaxTotal()
+				+ ",maxWait=" + poolConfig.getMaxWaitDuration().toMillis() + ",minEvictableIdleTime="
+				+ poolConfig.getMinEvictableIdleDuration().toMillis() + ",timeout=" + timeoutMillis;
+	}
+
+	public static class SharedConnection {
+		protected final String url;
+		protected final JedisPooled jedis;
+		protected final SessionEventListener sessionEventListener;
+		protected final ConnectionPoolConfig poolConfig;
+		protected final String settings;
+		protected final int timeoutMillis;
+		protected int references;
+		protected AdaptivePoolSizer adaptivePoolSizer;
+		protected SessionEventStream sessionEventStream;
+
+		protected SharedConnection(final String url, final JedisPooled jedis, final SessionEventListener sessionEventListener,
+				final ConnectionPoolConfig poolConfig, final String settings, final int timeoutMillis) {
+			this.url = url;
+			this.jedis = jedis;
+			this.sessionEventListener = sessionEventListener;
+			this.poolConfig = poolConfig;
+			this.settings = settings;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public JedisPooled getJedis() {
+			return jedis;
+		}
+
+		public SessionEventListener getSessionEventListener() {
+			return sessionEventListener;
+		}
+
+		/**
+		 * Starts the stream event reader on first use. Its reads block for half the socket timeout, so an idle stream never looks like a
+		 * lost connection.
+		 */
+		public synchronized SessionEventStream getSessionEventStream() {
+			if (sessionEventStream == null) {
+				final URI uri = URI.create(url);
+				sessionEventStream = withLibraryClassLoader(() -> new SessionEventStream(jedis, Math.max(1, timeoutMillis / 2),
+						"redex-stream-" + uri.getHost() + ":" + uri.getPort()));
+			}
+			return sessionEventStream;
+		}
+
+		/**
+		 * Starts adaptive sizing of the shared pool, unless another session manager already did. The pool's configured bounds are the
+		 * floor it never shrinks below.
+		 */
+		public synchronized AdaptivePoolSizer enableAdaptivePoolSizing(final int limitMaxTotal, final long targetWaitMillis) {
+			if (adaptivePoolSizer == null) {
+				adaptivePoolSizer = new AdaptivePoolSizer(jedis.getPool(), poolConfig.getMinIdle(), poolConfig.getMaxIdle(),
+						poolConfig.getMaxTotal(), limitMaxTotal, targetWaitMillis);
+			}
+			return adaptivePoolSizer;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * A Lua script executed with {@code EVALSHA}, falling back to {@code EVAL} (which also caches it server side) when Redis doesn't know
+ * the script yet.
+ */
+public class RedisScript {
+	private final byte[] script;
+	private final byte[] sha1;
+
+	public RedisScript(final String script) {
+		this.script = script.getBytes(StandardCharsets.UTF_8);
+		try {
+			sha1 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(this.script)).getBytes(StandardCharsets.US_ASCII);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Object eval(final UnifiedJedis jedis, final List<byte[]> keys, final List<byte[]> args) {
+		try {
+			return jedis.evalsha(sha1, keys, args);
+		} catch (final JedisNoScriptException e) {
+			return jedis.eval(script, keys, args);
+		}
+	}
+
+	public byte[] getScript() {
+		return script;
+	}
+}
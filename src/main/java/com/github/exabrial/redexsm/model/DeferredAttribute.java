@@ -0,0 +1,34 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.model;
+
+/**
+ * Placeholder for a session attribute that exists in Redis but was not loaded yet. Holds the attribute's hash field name so it can be
+ * fetched on first access, or kept as-is when the session is written back. Attributes stored in chunks also carry their chunk
+ * reference, so the chunks' expiry can be extended without loading them.
+ */
+public class DeferredAttribute {
+	public final byte[] storageKey;
+	public final byte[] chunkReference;
+
+	public DeferredAttribute(final byte[] storageKey) {
+		this(storageKey, null);
+	}
+
+	public DeferredAttribute(final byte[] storageKey, final byte[] chunkReference) {
+		this.storageKey = storageKey;
+		this.chunkReference = chunkReference;
+	}
+}
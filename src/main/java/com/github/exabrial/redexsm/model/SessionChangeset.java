@@ -16,19 +16,35 @@
 package com.github.exabrial.redexsm.model;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+
+import com.github.exabrial.redexsm.codec.EncodedAttribute;
 
 public class SessionChangeset {
 	public static final String REDEX_SESSION_ID = "redex:sessionId";
 	public static final String REDEX_NODE_ID = "redex:nodeId";
 	public static final String REDEX_UID = "redex:uid";
+	/**
+	 * Hash field holding the session's write counter, as a decimal string so Redis can increment it.
+	 */
+	public static final String REDEX_VERSION = "redex:version";
 
 	private static final String REDEX = "redex:";
 	protected final Map<String, Object> changsetMap = new HashMap<>();
+	protected final List<DeferredAttribute> retainedAttributes = new ArrayList<>();
+	protected final List<EncodedAttribute> encodedAttributes = new ArrayList<>();
+	protected final List<String> removedAttributes = new ArrayList<>();
 	protected final String sessionId;
 	protected final long expirationInSeconds;
+	protected boolean merge;
+	protected String lockOwner;
+	protected String backupRoute;
+	protected long version;
 
 	public SessionChangeset(final String sessionId, final String nodeId, final long expirationInSeconds, final String remoteUser) {
 		this.sessionId = sessionId;
@@ -44,6 +60,94 @@ public class SessionChangeset {
 		changsetMap.put(key, value);
 	}
 
+	/**
+	 * Add an attribute that is already encoded, so it isn't serialized (and encrypted) again.
+	 */
+	public void putEncoded(final EncodedAttribute encodedAttribute) {
+		encodedAttributes.add(encodedAttribute);
+	}
+
+	public List<EncodedAttribute> getEncodedAttributes() {
+		return Collections.unmodifiableList(encodedAttributes);
+	}
+
+	/**
+	 * Remove an attribute from the stored session. Only meaningful when merging.
+	 */
+	public void remove(final String key) {
+		removedAttributes.add(key);
+	}
+
+	public List<String> getRemovedAttributes() {
+		return Collections.unmodifiableList(removedAttributes);
+	}
+
+	/**
+	 * @return true if the changeset only holds the attributes changed since the session was last stored, and is merged into the stored
+	 *         session rather than replacing it
+	 */
+	public boolean isMerge() {
+		return merge;
+	}
+
+	public void setMerge(final boolean merge) {
+		this.merge = merge;
+	}
+
+	/**
+	 * @return the owner of the session lease lock this changeset was made under, or null if it wasn't made under one; the write is
+	 *         rejected if the lease has been lost
+	 */
+	public String getLockOwner() {
+		return lockOwner;
+	}
+
+	public void setLockOwner(final String lockOwner) {
+		this.lockOwner = lockOwner;
+	}
+
+	/**
+	 * @return the route of the node that keeps a backup copy of the session, or null if none does
+	 */
+	public String getBackupRoute() {
+		return backupRoute;
+	}
+
+	public void setBackupRoute(final String backupRoute) {
+		this.backupRoute = backupRoute;
+	}
+
+	/**
+	 * @return the version the backend stored the session as, or 0 if it wasn't stored
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(final long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Keep an attribute that was never loaded from Redis as it is currently stored.
+	 */
+	public void retain(final DeferredAttribute deferredAttribute) {
+		retainedAttributes.add(deferredAttribute);
+	}
+
+	public List<DeferredAttribute> getRetainedAttributes() {
+		return Collections.unmodifiableList(retainedAttributes);
+	}
+
+	public List<byte[]> getRetainedFields() {
+		return retainedAttributes.stream().map((final DeferredAttribute deferredAttribute) -> deferredAttribute.storageKey).toList();
+	}
+
+	public List<byte[]> getRetainedChunkReferences() {
+		return retainedAttributes.stream().map((final DeferredAttribute deferredAttribute) -> deferredAttribute.chunkReference)
+				.filter(Objects::nonNull).toList();
+	}
+
 	public long getExpirationInSeconds() {
 		return expirationInSeconds;
 	}
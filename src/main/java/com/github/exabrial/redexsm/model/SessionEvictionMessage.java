@@ -15,16 +15,59 @@
  */
 package com.github.exabrial.redexsm.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
+/**
+ * Tells other nodes a session was written. The route of the session's backup node, if any, is appended after the fields every
+ * version reads, so older nodes ignore it.
+ */
 public class SessionEvictionMessage extends SessionMessage implements Serializable {
 	private static final long serialVersionUID = 1L;
+	public final String backupRoute;
 
 	public SessionEvictionMessage(final String sourceNodeId, final String sessionId) {
+		this(sourceNodeId, sessionId, null);
+	}
+
+	public SessionEvictionMessage(final String sourceNodeId, final String sessionId, final String backupRoute) {
 		super(sourceNodeId, sessionId);
+		this.backupRoute = backupRoute;
 	}
 
 	public SessionEvictionMessage(final byte[] fromBytes) {
 		super(fromBytes);
+		try (final ByteArrayInputStream bais = new ByteArrayInputStream(fromBytes)) {
+			try (final DataInputStream dis = new DataInputStream(bais)) {
+				dis.readUTF();
+				dis.readUTF();
+				backupRoute = dis.available() > 0 ? dis.readUTF() : null;
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public byte[] toBytes() {
+		final byte[] bytes = super.toBytes();
+		if (backupRoute == null) {
+			return bytes;
+		} else {
+			try (final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+				try (final DataOutputStream dos = new DataOutputStream(baos)) {
+					dos.write(bytes);
+					dos.writeUTF(backupRoute);
+					dos.flush();
+					return baos.toByteArray();
+				}
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 }
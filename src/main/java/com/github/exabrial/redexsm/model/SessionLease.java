@@ -0,0 +1,36 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.model;
+
+import java.util.Map;
+
+/**
+ * A session lease lock acquired together with the session it protects.
+ */
+public class SessionLease {
+	/**
+	 * Identifies this acquisition of the lock; writes made under the lease carry it as their fencing token.
+	 */
+	public final String owner;
+	/**
+	 * The session as stored when the lock was acquired, or null if it wasn't loaded.
+	 */
+	public final Map<String, Object> sessionMap;
+
+	public SessionLease(final String owner, final Map<String, Object> sessionMap) {
+		this.owner = owner;
+		this.sessionMap = sessionMap;
+	}
+}
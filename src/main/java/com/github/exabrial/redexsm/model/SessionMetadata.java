@@ -0,0 +1,76 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The state of a session other than its attributes and principal, stored as one fixed layout field: a layout version byte, a flags
+ * byte, the creation, last accessed and this accessed times, the max inactive interval, and the auth type if there is one.
+ */
+public class SessionMetadata {
+	public static final byte LAYOUT_VERSION = 1;
+	private static final int FLAG_NEW = 1;
+	private static final int FLAG_VALID = 2;
+	private static final int FLAG_AUTH_TYPE = 4;
+
+	public final String authType;
+	public final long creationTime;
+	public final boolean isNew;
+	public final boolean isValid;
+	public final long lastAccessedTime;
+	public final int maxInactiveInterval;
+	public final long thisAccessedTime;
+
+	public SessionMetadata(final String authType, final long creationTime, final boolean isNew, final boolean isValid,
+			final long lastAccessedTime, final int maxInactiveInterval, final long thisAccessedTime) {
+		this.authType = authType;
+		this.creationTime = creationTime;
+		this.isNew = isNew;
+		this.isValid = isValid;
+		this.lastAccessedTime = lastAccessedTime;
+		this.maxInactiveInterval = maxInactiveInterval;
+		this.thisAccessedTime = thisAccessedTime;
+	}
+
+	public void writeTo(final DataOutputStream dataOutputStream) throws IOException {
+		dataOutputStream.writeByte(LAYOUT_VERSION);
+		dataOutputStream.writeByte((isNew ? FLAG_NEW : 0) | (isValid ? FLAG_VALID : 0) | (authType != null ? FLAG_AUTH_TYPE : 0));
+		dataOutputStream.writeLong(creationTime);
+		dataOutputStream.writeLong(lastAccessedTime);
+		dataOutputStream.writeLong(thisAccessedTime);
+		dataOutputStream.writeInt(maxInactiveInterval);
+		if (authType != null) {
+			dataOutputStream.writeUTF(authType);
+		}
+	}
+
+	public static SessionMetadata readFrom(final DataInputStream dataInputStream) throws IOException {
+		final byte layoutVersion = dataInputStream.readByte();
+		if (layoutVersion != LAYOUT_VERSION) {
+			throw new IOException("Unknown session metadata layout version:" + layoutVersion);
+		}
+		final int flags = dataInputStream.readByte();
+		final long creationTime = dataInputStream.readLong();
+		final long lastAccessedTime = dataInputStream.readLong();
+		final long thisAccessedTime = dataInputStream.readLong();
+		final int maxInactiveInterval = dataInputStream.readInt();
+		final String authType = (flags & FLAG_AUTH_TYPE) != 0 ? dataInputStream.readUTF() : null;
+		return new SessionMetadata(authType, creationTime, (flags & FLAG_NEW) != 0, (flags & FLAG_VALID) != 0, lastAccessedTime,
+				maxInactiveInterval, thisAccessedTime);
+	}
+}
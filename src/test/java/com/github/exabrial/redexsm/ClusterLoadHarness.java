@@ -0,0 +1,336 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a cluster of session managers in one JVM, each in its own embedded Tomcat, and drives a synthetic workload through their
+ * {@link SessionReplicationValve}. With a redisUrl the nodes share that Redis server; without one each node keeps its sessions in its
+ * own {@link com.github.exabrial.redexsm.file.MappedFileRedisService} store, which measures the cost of a node without a network.
+ * Every user sticks to a home node with the configured probability, writes an attribute of the configured size on a share of its
+ * requests, and logs out at the configured rate.
+ *
+ * @author jonathan.fisher
+ */
+public class ClusterLoadHarness {
+	protected static final Logger log = LoggerFactory.getLogger(ClusterLoadHarness.class);
+	protected static final String SESSION_COOKIE = "JSESSIONID";
+
+	protected int nodes = 2;
+	protected int users = 50;
+	protected int requests = 1000;
+	protected int clientThreads = 4;
+	protected double stickiness = 0.9;
+	protected double writeRate = 0.5;
+	protected double logoutRate = 0.01;
+	protected int attributeBytes = 1024;
+	protected String redisUrl;
+	protected Consumer<ImprovedRedisSessionManager> managerSettings = (final ImprovedRedisSessionManager manager) -> {
+	};
+
+	public Report run() throws Exception {
+		final Path baseDir = Files.createTempDirectory("redex-harness");
+		final String keyPrefix = "harness" + UUID.randomUUID().toString().substring(0, 8);
+		final List<Tomcat> tomcats = new ArrayList<>();
+		final List<ImprovedRedisSessionManager> managers = new ArrayList<>();
+		final int[] ports = new int[nodes];
+		try {
+			for (int node = 0; node < nodes; node++) {
+				final ImprovedRedisSessionManager manager = new ImprovedRedisSessionManager();
+				manager.setKeyPrefix(keyPrefix);
+				manager.setNodeName("node" + node + ":" + keyPrefix);
+				if (redisUrl != null) {
+					manager.setRedisUrl(redisUrl);
+				} else {
+					manager.setBackend(ImprovedRedisSessionManager.BACKEND_FILE);
+					manager.setStoreFile(baseDir.resolve("node" + node + ".store").toString());
+				}
+				managerSettings.accept(manager);
+				final Tomcat tomcat = startNode(baseDir.resolve("node" + node), node, manager);
+				tomcats.add(tomcat);
+				managers.add(manager);
+				ports[node] = tomcat.getConnector().getLocalPort();
+			}
+			final Report report = drive(ports, managers);
+			log.info("run() nodes:{} {}", nodes, report);
+			return report;
+		} finally {
+			for (final Tomcat tomcat : tomcats) {
+				tomcat.stop();
+				tomcat.destroy();
+			}
+		}
+	}
+
+	protected Tomcat startNode(final Path nodeDir, final int node, final ImprovedRedisSessionManager manager) throws Exception {
+		final Path docBase = Files.createDirectories(nodeDir.resolve("docBase"));
+		final Tomcat tomcat = new Tomcat();
+		tomcat.setBaseDir(nodeDir.toString());
+		tomcat.setPort(0);
+		tomcat.getEngine().setName("harness-node" + node);
+		tomcat.getConnector();
+		final Context context = tomcat.addContext("/app", docBase.toString());
+		context.setManager(manager);
+		Tomcat.addServlet(context, "work", new WorkServlet(attributeBytes));
+		context.addServletMappingDecoded("/work", "work");
+		tomcat.start();
+		return tomcat;
+	}
+
+	protected Report drive(final int[] ports, final List<ImprovedRedisSessionManager> managers) throws Exception {
+		final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+		final Report report = new Report();
+		final ExecutorService executor = Executors.newFixedThreadPool(clientThreads);
+		final long startTime = System.nanoTime();
+		try {
+			final List<Future<?>> workers = new ArrayList<>();
+			for (int thread = 0; thread < clientThreads; thread++) {
+				final int firstUser = thread;
+				workers.add(executor.submit(() -> {
+					driveUsers(httpClient, ports, firstUser, report);
+					return null;
+				}));
+			}
+			for (final Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		report.elapsedNanos = System.nanoTime() - startTime;
+		for (final ImprovedRedisSessionManager manager : managers) {
+			report.localHits += manager.getLocalHitCount();
+			report.redisHits += manager.getRedisHitCount();
+			report.misses += manager.getSessionMissCount();
+			report.published += manager.getPublishCount();
+			report.eventsProcessed += manager.getEventProcessedCount();
+			report.circuitBreakerStates.add(manager.getCircuitBreakerState());
+		}
+		return report;
+	}
+
+	/**
+	 * Sends this thread's share of the requests, for the users numbered firstUser, firstUser + clientThreads, and so on.
+	 */
+	protected void driveUsers(final HttpClient httpClient, final int[] ports, final int firstUser, final Report report)
+			throws IOException, InterruptedException {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final List<Integer> ownUsers = new ArrayList<>();
+		for (int user = firstUser; user < users; user += clientThreads) {
+			ownUsers.add(user);
+		}
+		final String[] sessionIds = new String[users];
+		for (int i = firstUser; i < requests && !ownUsers.isEmpty(); i += clientThreads) {
+			final int user = ownUsers.get((i / clientThreads) % ownUsers.size());
+			final int node = random.nextDouble() < stickiness ? user % ports.length : random.nextInt(ports.length);
+			final String op = random.nextDouble() < logoutRate ? "logout" : random.nextDouble() < writeRate ? "write" : "read";
+			final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://localhost:" + ports[node] + "/app/work?op=" + op))
+					.timeout(Duration.ofSeconds(30));
+			if (sessionIds[user] != null) {
+				builder.header("Cookie", SESSION_COOKIE + "=" + sessionIds[user]);
+			}
+			final long requestStart = System.nanoTime();
+			final HttpResponse<String> response = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+			report.latency.record(System.nanoTime() - requestStart);
+			report.requests.increment();
+			if (response.statusCode() != HttpServletResponse.SC_OK) {
+				report.failures.increment();
+			}
+			if ("logout".equals(op)) {
+				sessionIds[user] = null;
+			} else {
+				final Optional<String> sessionId = toSessionId(response);
+				if (sessionId.isPresent()) {
+					sessionIds[user] = sessionId.get();
+				}
+			}
+		}
+	}
+
+	protected static Optional<String> toSessionId(final HttpResponse<?> response) {
+		return response.headers().allValues("Set-Cookie").stream().filter((final String cookie) -> cookie.startsWith(SESSION_COOKIE + "="))
+				.map((final String cookie) -> cookie.substring(SESSION_COOKIE.length() + 1).split(";", 2)[0]).findFirst();
+	}
+
+	public void setNodes(final int nodes) {
+		this.nodes = nodes;
+	}
+
+	public void setUsers(final int users) {
+		this.users = users;
+	}
+
+	public void setRequests(final int requests) {
+		this.requests = requests;
+	}
+
+	public void setClientThreads(final int clientThreads) {
+		this.clientThreads = clientThreads;
+	}
+
+	public void setStickiness(final double stickiness) {
+		this.stickiness = stickiness;
+	}
+
+	public void setWriteRate(final double writeRate) {
+		this.writeRate = writeRate;
+	}
+
+	public void setLogoutRate(final double logoutRate) {
+		this.logoutRate = logoutRate;
+	}
+
+	public void setAttributeBytes(final int attributeBytes) {
+		this.attributeBytes = attributeBytes;
+	}
+
+	public void setRedisUrl(final String redisUrl) {
+		this.redisUrl = redisUrl;
+	}
+
+	public void setManagerSettings(final Consumer<ImprovedRedisSessionManager> managerSettings) {
+		this.managerSettings = managerSettings;
+	}
+
+	public static class Report {
+		protected final LongAdder requests = new LongAdder();
+		protected final LongAdder failures = new LongAdder();
+		protected final LatencyHistogram latency = new LatencyHistogram();
+		protected final List<String> circuitBreakerStates = new ArrayList<>();
+		protected long elapsedNanos;
+		protected long localHits;
+		protected long redisHits;
+		protected long misses;
+		protected long published;
+		protected long eventsProcessed;
+
+		public long getRequests() {
+			return requests.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		public double getThroughput() {
+			return requests.sum() * 1_000_000_000d / Math.max(1, elapsedNanos);
+		}
+
+		public long getLatencyP50Micros() {
+			return latency.getPercentileMicros(50);
+		}
+
+		public long getLatencyP99Micros() {
+			return latency.getPercentileMicros(99);
+		}
+
+		public double getLocalHitRate() {
+			final long lookups = localHits + redisHits + misses;
+			return lookups == 0 ? 0 : (double) localHits / lookups;
+		}
+
+		public long getLocalHits() {
+			return localHits;
+		}
+
+		public long getRedisHits() {
+			return redisHits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public long getPublished() {
+			return published;
+		}
+
+		public long getEventsProcessed() {
+			return eventsProcessed;
+		}
+
+		public List<String> getCircuitBreakerStates() {
+			return circuitBreakerStates;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"requests:%d failures:%d throughput:%.1f/s latencyP50:%dus latencyP99:%dus localHits:%d redisHits:%d misses:%d"
+							+ " localHitRate:%.3f published:%d eventsProcessed:%d circuitBreakers:%s",
+					getRequests(), getFailures(), getThroughput(), getLatencyP50Micros(), getLatencyP99Micros(), localHits,
+					redisHits, misses, getLocalHitRate(), published, eventsProcessed, circuitBreakerStates);
+		}
+	}
+
+	protected static class WorkServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+		private final int attributeBytes;
+
+		protected WorkServlet(final int attributeBytes) {
+			this.attributeBytes = attributeBytes;
+		}
+
+		@Override
+		protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+			final String op = request.getParameter("op");
+			if ("logout".equals(op)) {
+				final HttpSession session = request.getSession(false);
+				if (session != null) {
+					session.invalidate();
+				}
+			} else {
+				final HttpSession session = request.getSession(true);
+				if ("write".equals(op)) {
+					final byte[] payload = new byte[attributeBytes];
+					ThreadLocalRandom.current().nextBytes(payload);
+					session.setAttribute("payload", payload);
+				} else {
+					session.getAttribute("payload");
+				}
+			}
+			response.setContentType("text/plain");
+			response.getWriter().write("ok");
+		}
+	}
+}
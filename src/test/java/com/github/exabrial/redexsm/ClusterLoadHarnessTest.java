@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+class ClusterLoadHarnessTest {
+	@Test
+	void fileBackendServesEveryRequest() throws Exception {
+		final ClusterLoadHarness harness = new ClusterLoadHarness();
+		harness.setNodes(2);
+		harness.setUsers(20);
+		harness.setRequests(400);
+		harness.setLogoutRate(0);
+		final ClusterLoadHarness.Report report = harness.run();
+		assertEquals(400, report.getRequests());
+		assertEquals(0, report.getFailures());
+		assertTrue(report.getLocalHits() > 0);
+		// every request touches its session, and without logouts every session is still valid when the request completes
+		assertEquals(400, report.getPublished());
+		assertTrue(report.getLatencyP50Micros() > 0);
+		assertTrue(report.getLatencyP50Micros() <= report.getLatencyP99Micros());
+	}
+
+	@Test
+	void unreachableRedisDegradesToLocalSessions() throws Exception {
+		final int closedPort;
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			closedPort = serverSocket.getLocalPort();
+		}
+		final ClusterLoadHarness harness = new ClusterLoadHarness();
+		harness.setNodes(2);
+		harness.setUsers(10);
+		harness.setRequests(200);
+		harness.setStickiness(1);
+		harness.setRedisUrl("redis://localhost:" + closedPort);
+		harness.setManagerSettings((final ImprovedRedisSessionManager manager) -> {
+			manager.setRedisTimeoutMillis(200);
+			manager.setCircuitBreakerOpenMillis(60000);
+		});
+		final ClusterLoadHarness.Report report = harness.run();
+		assertEquals(0, report.getFailures());
+		assertTrue(report.getLocalHits() > 0);
+		assertEquals(0, report.getPublished());
+		assertEquals(0, report.getEventsProcessed());
+		assertTrue(report.getCircuitBreakerStates().stream().allMatch(RedisCircuitBreaker.State.OPEN.name()::equals));
+	}
+
+	/**
+	 * Run with {@code -Dredex.harness.redisUrl=redis://localhost:6379} to measure a cluster sharing a real Redis server.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "redex.harness.redisUrl", matches = ".+")
+	void sharedRedisCluster() throws Exception {
+		final ClusterLoadHarness harness = new ClusterLoadHarness();
+		harness.setRedisUrl(System.getProperty("redex.harness.redisUrl"));
+		harness.setNodes(Integer.getInteger("redex.harness.nodes", 4));
+		harness.setUsers(Integer.getInteger("redex.harness.users", 1000));
+		harness.setRequests(Integer.getInteger("redex.harness.requests", 100000));
+		harness.setClientThreads(Integer.getInteger("redex.harness.clientThreads", 16));
+		harness.setStickiness(Double.parseDouble(System.getProperty("redex.harness.stickiness", "0.9")));
+		harness.setLogoutRate(Double.parseDouble(System.getProperty("redex.harness.logoutRate", "0.01")));
+		harness.setAttributeBytes(Integer.getInteger("redex.harness.attributeBytes", 1024));
+		final ClusterLoadHarness.Report report = harness.run();
+		assertEquals(0, report.getFailures());
+		assertTrue(report.getPublished() > 0);
+		assertTrue(report.getLatencyP50Micros() <= report.getLatencyP99Micros());
+	}
+}
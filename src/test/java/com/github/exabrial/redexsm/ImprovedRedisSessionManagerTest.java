@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Valve;
+import org.apache.catalina.authenticator.AuthenticatorBase;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ImprovedRedisSessionManagerTest {
+	private final HttpClient httpClient = HttpClient.newHttpClient();
+	private ImprovedRedisSessionManager manager;
+	private Context context;
+	private Tomcat tomcat;
+
+	@BeforeEach
+	void startTomcat() throws Exception {
+		final Path baseDir = Files.createTempDirectory("redex-test");
+		manager = new ImprovedRedisSessionManager();
+		manager.setKeyPrefix("test");
+		manager.setBackend(ImprovedRedisSessionManager.BACKEND_FILE);
+		manager.setStoreFile(baseDir.resolve("sessions.store").toString());
+		tomcat = new Tomcat();
+		tomcat.setBaseDir(baseDir.toString());
+		tomcat.setPort(0);
+		tomcat.getConnector();
+		context = tomcat.addContext("/app", Files.createDirectories(baseDir.resolve("docBase")).toString());
+		context.setManager(manager);
+		Tomcat.addServlet(context, "touch", new TouchServlet());
+		context.addServletMappingDecoded("/touch", "touch");
+		Tomcat.addServlet(context, "untouched", new UntouchedServlet());
+		context.addServletMappingDecoded("/untouched", "untouched");
+		tomcat.start();
+	}
+
+	@AfterEach
+	void stopTomcat() throws Exception {
+		tomcat.stop();
+		tomcat.destroy();
+	}
+
+	@Test
+	void requestThatDoesNotTouchItsSessionIsNotReplicated() throws Exception {
+		final String sessionId = ClusterLoadHarness.toSessionId(get("/touch", null)).orElse(null);
+		assertNotNull(sessionId);
+		assertEquals(1, manager.getPublishCount());
+
+		get("/untouched", sessionId);
+		assertEquals(1, manager.getPublishCount());
+
+		manager.evictSession(sessionId);
+		get("/untouched", sessionId);
+		assertEquals(1, manager.getPublishCount());
+
+		get("/touch", sessionId);
+		assertEquals(2, manager.getPublishCount());
+	}
+
+	@Test
+	void requestThatDoesNotTouchItsSessionDoesNotLoadIt() throws Exception {
+		// otherwise the authenticator looks up the session to restore a cached principal, before this manager sees the request
+		for (final Valve valve : context.getPipeline().getValves()) {
+			if (valve instanceof AuthenticatorBase) {
+				((AuthenticatorBase) valve).setCache(false);
+			}
+		}
+		final String sessionId = ClusterLoadHarness.toSessionId(get("/touch", null)).orElse(null);
+		assertNotNull(sessionId);
+		manager.evictSession(sessionId);
+
+		get("/untouched", sessionId);
+		assertEquals(1, manager.getPublishCount());
+		assertEquals(0, manager.getRedisHitCount());
+		assertEquals(0, manager.getSessionMissCount());
+
+		get("/touch", sessionId);
+		assertEquals(2, manager.getPublishCount());
+		assertEquals(1, manager.getRedisHitCount());
+	}
+
+	private HttpResponse<String> get(final String path, final String sessionId) throws IOException, InterruptedException {
+		final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://localhost:" + tomcat.getConnector().getLocalPort()
+				+ "/app" + path));
+		if (sessionId != null) {
+			builder.header("Cookie", ClusterLoadHarness.SESSION_COOKIE + "=" + sessionId);
+		}
+		final HttpResponse<String> response = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+		assertEquals(HttpServletResponse.SC_OK, response.statusCode());
+		return response;
+	}
+
+	protected static class TouchServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+			request.getSession(true).setAttribute("counter", System.nanoTime());
+			response.getWriter().write("ok");
+		}
+	}
+
+	protected static class UntouchedServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+			response.getWriter().write("ok");
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+
+import org.junit.jupiter.api.Test;
+
+class RedisCircuitBreakerTest {
+	@Test
+	void probeThatThrowsOtherExceptionClosesBreaker() {
+		final RedisCircuitBreaker circuitBreaker = openBreaker();
+		assertTrue(circuitBreaker.allowRequest());
+		assertEquals(RedisCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+		assertThrows(IllegalStateException.class, () -> guardedCall(circuitBreaker, new IllegalStateException("codec error")));
+		assertEquals(RedisCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	void probeThatFindsRedisUnavailableReopensBreaker() {
+		final RedisCircuitBreaker circuitBreaker = openBreaker();
+		assertTrue(circuitBreaker.allowRequest());
+		assertThrows(RedisUnavailableException.class,
+				() -> guardedCall(circuitBreaker, new RedisUnavailableException(new ConnectException("Connection refused"))));
+		assertEquals(RedisCircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	void halfOpenLetsOnlyOneProbeThrough() {
+		final RedisCircuitBreaker circuitBreaker = openBreaker();
+		assertTrue(circuitBreaker.allowRequest());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	private static RedisCircuitBreaker openBreaker() {
+		final RedisCircuitBreaker circuitBreaker = new RedisCircuitBreaker(1, 0);
+		circuitBreaker.record(false);
+		assertEquals(RedisCircuitBreaker.State.OPEN, circuitBreaker.getState());
+		return circuitBreaker;
+	}
+
+	/**
+	 * Mirrors the way the manager guards its calls to Redis.
+	 */
+	private static void guardedCall(final RedisCircuitBreaker circuitBreaker, final RuntimeException outcome) {
+		boolean available = true;
+		try {
+			throw outcome;
+		} catch (final RedisUnavailableException e) {
+			available = false;
+			throw e;
+		} finally {
+			circuitBreaker.record(available);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2023 Jonathan S. Fisher
+ *
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by the European Commission - subsequent versions of the EUPL
+ * (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence. You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/sites/default/files/custom-page/attachment/2020-03/EUPL-1.2%20EN.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the Licence is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+package com.github.exabrial.redexsm;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class UriIgnoreMatcherTest {
+	private final UriIgnoreMatcher uriIgnoreMatcher = new UriIgnoreMatcher("/static/", "/health, /favicon.ico", "css,js");
+
+	@Test
+	void matchesPrefixesSuffixesAndExtensions() {
+		assertTrue(uriIgnoreMatcher.matches("/static/app"));
+		assertTrue(uriIgnoreMatcher.matches("/app/health"));
+		assertTrue(uriIgnoreMatcher.matches("/app/site.css"));
+		assertFalse(uriIgnoreMatcher.matches("/app/page"));
+		assertFalse(uriIgnoreMatcher.matches("/app.css/page"));
+	}
+
+	@Test
+	void ignoresPathParametersOfTheLastSegment() {
+		assertTrue(uriIgnoreMatcher.matches("/app/site.js;jsessionid=0123.node1"));
+		assertTrue(uriIgnoreMatcher.matches("/app/health;jsessionid=0123"));
+		assertFalse(uriIgnoreMatcher.matches("/app/page;jsessionid=0123.css"));
+		assertTrue(uriIgnoreMatcher.matches("/app;v=1/site.css"));
+	}
+}